@@ -1,8 +1,10 @@
 package org.jetbrains.teamcity;
 
 import lombok.*;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
+import org.jetbrains.teamcity.agent.StagingMode;
 
 import java.io.File;
 import java.util.List;
@@ -32,6 +34,13 @@ public class Agent {
     private String artifactId = null;
     @Parameter(property = "extras")
     private List<SourceDest> extras;
+    /**
+     * How dependencies are placed into the exploded plugin: <code>copy</code>, <code>hardlink</code>,
+     * <code>reflink</code> or <code>symlink</code>. Falls back to copying where links or clones aren't possible.
+     * Overridden by the <code>teamcity.stagingMode</code> property of the goal.
+     */
+    @Parameter(defaultValue = "copy")
+    private String stagingMode = "copy";
 
     public boolean isNeedToBuild() {
         return spec != null && !Jdk8Compat.isBlank(spec);
@@ -53,6 +62,18 @@ public class Agent {
         return !Objects.equals(artifactId, pluginName);
     }
 
+    public DependencySpec toDependencySpec() {
+        return new DependencySpec(spec, exclusions);
+    }
+
+    public StagingMode toStagingMode() throws MojoExecutionException {
+        try {
+            return StagingMode.of(stagingMode);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
     public boolean hasExtras() {
         return extras != null && !extras.isEmpty();
     }
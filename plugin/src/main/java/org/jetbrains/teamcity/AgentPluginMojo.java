@@ -50,6 +50,8 @@ public class AgentPluginMojo extends BaseTeamCityMojo {
     private Descriptor descriptor = new Descriptor();
     @Parameter(property = "extras")
     private List<SourceDest> extras;
+    @Parameter(defaultValue = "copy", property = "teamcity.stagingMode")
+    private String stagingMode;
 
     private AgentPluginWorkflow agentPluginWorkflow;
     @Parameter( defaultValue = "${teamcity.plugin.version}", readonly = true )
@@ -60,7 +62,7 @@ public class AgentPluginMojo extends BaseTeamCityMojo {
         getLog().warn("TeamCity Agent Assemble start");
         try {
             WorkflowUtil util = getWorkflowUtil();
-            Agent agent = new Agent(spec, pluginName, intellijProjectPath, exclusions, tool, failOnMissingDependencies, ignoreExtraFilesIn, descriptor, getProject().getArtifactId(), extras);
+            Agent agent = new Agent(spec, pluginName, intellijProjectPath, exclusions, tool, failOnMissingDependencies, ignoreExtraFilesIn, descriptor, getProject().getArtifactId(), extras, stagingMode);
             agent.setDefaultValues(".", getProject(), getProjectBuildOutputDirectory(), pluginVersion);
             DependencyNode rootNode = findRootNode(util);
             agentPluginWorkflow = new AgentPluginWorkflow(rootNode, agent, util, getWorkDirectory().toPath(), isCreateIdeaArtifacts());
@@ -4,6 +4,7 @@ import lombok.Data;
 import org.apache.commons.io.FileUtils;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.project.MavenProject;
 import org.jetbrains.teamcity.agent.*;
 import org.jetbrains.teamcity.data.ArtifactNode;
 import org.w3c.dom.Document;
@@ -135,6 +136,17 @@ public class ArtifactBuilder {
         }
     }
 
+    /**
+     * @return name of the IDEA module of the reactor project which produced the dependency
+     */
+    private String getModuleName(DependencyPathEntry dpe) {
+        ReactorProjects reactorProjects = util.getReactorProjects();
+        MavenProject module = reactorProjects.findProjectByFile(dpe.getResolved());
+        if (module == null)
+            module = reactorProjects.findProject(dpe.getArtifact());
+        return module != null ? module.getArtifactId() : dpe.getArtifact().getArtifactId();
+    }
+
     private Element createElement(Document doc, Element parent, ArtifactNode artifactNode, Path ideaProjectRoot) {
         Element element = doc.createElement("element");
         parent.appendChild(element);
@@ -147,7 +159,7 @@ public class ArtifactBuilder {
                     setIdName(element, "archive", artifactNode.getPath());
                     Element moduleOutput = doc.createElement("element");
                     moduleOutput.setAttribute("id", "module-output");
-                    moduleOutput.setAttribute("name", dpe.getArtifact().getArtifactId());
+                    moduleOutput.setAttribute("name", getModuleName(dpe));
                     element.appendChild(moduleOutput);
                 } else {
                     setIdName(element, "library", getMavenLibraryName(dpe.getArtifact()));
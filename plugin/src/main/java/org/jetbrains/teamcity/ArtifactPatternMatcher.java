@@ -0,0 +1,160 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.resolver.filter.ArtifactFilter;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.apache.maven.artifact.versioning.InvalidVersionSpecificationException;
+import org.apache.maven.artifact.versioning.VersionRange;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled form of the <code>groupId:artifactId:type:version</code> patterns understood by
+ * {@link org.apache.maven.shared.artifact.filter.StrictPatternIncludesArtifactFilter} and
+ * {@link org.apache.maven.shared.artifact.filter.StrictPatternExcludesArtifactFilter}, with the same semantics.
+ * <p>
+ * Patterns are parsed once. Patterns consisting of exact tokens and implied wildcards only are looked up in a hash set
+ * per combination of exact positions, the rest are matched token by token. Results are remembered per artifact
+ * coordinates, as the same artifact usually appears in a dependency tree many times.
+ */
+public class ArtifactPatternMatcher {
+    private static final int TOKENS = 4;
+
+    private final Map<Integer, Set<List<String>>> exactPatterns = new HashMap<>();
+    private final List<Token[]> wildcardPatterns = new ArrayList<>();
+    private final Map<List<String>, Boolean> matches = new ConcurrentHashMap<>();
+
+    public ArtifactPatternMatcher(List<String> patterns) {
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                compile(pattern);
+            }
+        }
+    }
+
+    public static ArtifactFilter includes(List<String> patterns) {
+        ArtifactPatternMatcher matcher = new ArtifactPatternMatcher(patterns);
+        return matcher::matches;
+    }
+
+    public static ArtifactFilter excludes(List<String> patterns) {
+        ArtifactPatternMatcher matcher = new ArtifactPatternMatcher(patterns);
+        return it -> !matcher.matches(it);
+    }
+
+    public boolean matches(Artifact artifact) {
+        return matches(artifact.getGroupId(), artifact.getArtifactId(), artifact.getType(), artifact.getBaseVersion());
+    }
+
+    public boolean matches(String groupId, String artifactId, String type, String baseVersion) {
+        List<String> tokens = Arrays.asList(groupId, artifactId, type, baseVersion);
+        return matches.computeIfAbsent(tokens, this::match);
+    }
+
+    private boolean match(List<String> tokens) {
+        for (Map.Entry<Integer, Set<List<String>>> e : exactPatterns.entrySet()) {
+            if (e.getValue().contains(select(tokens, e.getKey())))
+                return true;
+        }
+        for (Token[] pattern : wildcardPatterns) {
+            boolean matched = true;
+            for (int i = 0; matched && i < pattern.length; i++) {
+                matched = pattern[i].matches(tokens.get(i));
+            }
+            if (matched)
+                return true;
+        }
+        return false;
+    }
+
+    private void compile(String pattern) {
+        String[] patternTokens = pattern.split(":");
+        // never matches if pattern tokens outnumber tokens to match
+        if (patternTokens.length > TOKENS)
+            return;
+        Token[] compiled = new Token[patternTokens.length];
+        boolean exactOnly = true;
+        for (int i = 0; i < patternTokens.length; i++) {
+            compiled[i] = Token.compile(patternTokens[i]);
+            exactOnly &= compiled[i].type == TokenType.ANY || compiled[i].type == TokenType.EXACT;
+        }
+        if (exactOnly) {
+            int mask = 0;
+            List<String> key = new ArrayList<>();
+            for (int i = 0; i < compiled.length; i++) {
+                if (compiled[i].type == TokenType.EXACT) {
+                    mask |= 1 << i;
+                    key.add(compiled[i].value);
+                }
+            }
+            exactPatterns.computeIfAbsent(mask, it -> new HashSet<>()).add(key);
+        } else {
+            wildcardPatterns.add(compiled);
+        }
+    }
+
+    private static List<String> select(List<String> tokens, int mask) {
+        List<String> key = new ArrayList<>(Integer.bitCount(mask));
+        for (int i = 0; i < TOKENS; i++) {
+            if ((mask & (1 << i)) != 0)
+                key.add(tokens.get(i));
+        }
+        return key;
+    }
+
+    private enum TokenType {
+        ANY, CONTAINS, SUFFIX, PREFIX, RANGE, EXACT
+    }
+
+    private static class Token {
+        private final TokenType type;
+        private final String value;
+        private final VersionRange range;
+
+        private Token(TokenType type, String value, VersionRange range) {
+            this.type = type;
+            this.value = value;
+            this.range = range;
+        }
+
+        /**
+         * Same precedence of the wildcard forms as in <code>AbstractStrictPatternArtifactFilter.matches</code>.
+         */
+        private static Token compile(String pattern) {
+            if ("*".equals(pattern) || pattern.length() == 0)
+                return new Token(TokenType.ANY, null, null);
+            if (pattern.startsWith("*") && pattern.endsWith("*"))
+                return new Token(TokenType.CONTAINS, pattern.substring(1, pattern.length() - 1), null);
+            if (pattern.startsWith("*"))
+                return new Token(TokenType.SUFFIX, pattern.substring(1), null);
+            if (pattern.endsWith("*"))
+                return new Token(TokenType.PREFIX, pattern.substring(0, pattern.length() - 1), null);
+            if (pattern.startsWith("[") || pattern.startsWith("(")) {
+                try {
+                    return new Token(TokenType.RANGE, pattern, VersionRange.createFromVersionSpec(pattern));
+                } catch (InvalidVersionSpecificationException e) {
+                    return new Token(TokenType.RANGE, pattern, null);
+                }
+            }
+            return new Token(TokenType.EXACT, pattern, null);
+        }
+
+        private boolean matches(String token) {
+            switch (type) {
+                case ANY:
+                    return true;
+                case CONTAINS:
+                    return token.contains(value);
+                case SUFFIX:
+                    return token.endsWith(value);
+                case PREFIX:
+                    return token.startsWith(value);
+                case RANGE:
+                    return range != null && range.containsVersion(new DefaultArtifactVersion(token));
+                default:
+                    return value.equals(token);
+            }
+        }
+    }
+}
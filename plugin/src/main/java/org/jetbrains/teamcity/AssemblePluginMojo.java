@@ -88,6 +88,12 @@ public class AssemblePluginMojo extends BaseTeamCityMojo {
     private Server server;
     @Parameter(defaultValue = "false")
     private boolean createIdeaArtifacts = false;
+    /**
+     * How dependencies are placed into the exploded plugins, overrides <code>stagingMode</code> of agent and server
+     * when set. Maven doesn't read properties into the nested configuration, so the property is taken here.
+     */
+    @Parameter(property = "teamcity.stagingMode")
+    private String stagingMode;
 
     @Getter
     private AgentPluginWorkflow agentPluginWorkflow;
@@ -102,6 +108,7 @@ public class AssemblePluginMojo extends BaseTeamCityMojo {
 
             WorkflowUtil util = getWorkflowUtil();
             DependencyNode rootNode = findRootNode(util);
+            util.collectDependencyNodeLists(rootNode, getDependencySpecs());
 
             agentPluginWorkflow = new AgentPluginWorkflow(rootNode, agent, util, getWorkDirectory().toPath(), createIdeaArtifacts);
             agentPluginWorkflow.execute();
@@ -120,7 +127,22 @@ public class AssemblePluginMojo extends BaseTeamCityMojo {
         }
     }
 
+    private List<DependencySpec> getDependencySpecs() {
+        List<DependencySpec> specs = new ArrayList<>();
+        if (agent.isNeedToBuild())
+            specs.add(agent.toDependencySpec());
+        if (server.isNeedToBuild())
+            specs.add(server.toDependencySpec(agent.getSpec()));
+        if (server.isNeedToBuildCommon())
+            specs.add(server.toCommonDependencySpec());
+        return specs;
+    }
+
     private void setDefaultconfigurationValues(String pluginVersion) {
+        if (stagingMode != null && !Jdk8Compat.isBlank(stagingMode)) {
+            agent.setStagingMode(stagingMode);
+            server.setStagingMode(stagingMode);
+        }
         PluginExecution pluginExecution = findPluginExecution();
         if (pluginExecution != null) {
             Xpp3Dom configuration = (Xpp3Dom) pluginExecution.getConfiguration();
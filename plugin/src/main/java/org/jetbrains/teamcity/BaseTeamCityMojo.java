@@ -4,6 +4,7 @@ import lombok.Getter;
 import lombok.Setter;
 import org.apache.maven.archiver.MavenArchiveConfiguration;
 import org.apache.maven.artifact.factory.ArtifactFactory;
+import org.apache.maven.artifact.handler.manager.ArtifactHandlerManager;
 import org.apache.maven.artifact.resolver.filter.ArtifactFilter;
 import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
@@ -18,8 +19,6 @@ import org.apache.maven.shared.artifact.filter.ScopeArtifactFilter;
 import org.apache.maven.shared.dependency.graph.DependencyCollectorBuilder;
 import org.apache.maven.shared.dependency.graph.DependencyCollectorBuilderException;
 import org.apache.maven.shared.dependency.graph.DependencyNode;
-import org.apache.maven.shared.dependency.graph.traversal.BuildingDependencyNodeVisitor;
-import org.apache.maven.shared.dependency.graph.traversal.DependencyNodeVisitor;
 import org.codehaus.plexus.archiver.manager.ArchiverManager;
 import org.eclipse.aether.RepositorySystem;
 import org.eclipse.aether.RepositorySystemSession;
@@ -35,6 +34,9 @@ import static org.apache.maven.artifact.Artifact.SCOPE_RUNTIME;
 @Getter
 @Setter
 public abstract class BaseTeamCityMojo extends AbstractMojo {
+    private static final String DEPENDENCY_GRAPH_SNAPSHOT = "dependency-graph.bin";
+    private static final String LOCAL_REPOSITORY_INDEX = "local-repository-index.txt";
+
     @Parameter(defaultValue = "${repositorySystemSession}")
     private RepositorySystemSession repoSession;
     @Component
@@ -60,6 +62,13 @@ public abstract class BaseTeamCityMojo extends AbstractMojo {
     @Parameter(property = "tokens", defaultValue = "standard")
     private String tokens;
 
+    /**
+     * Write the dependency tree and the trees selected by each spec into <code>dependency-tree*.txt</code> files in
+     * the work directory. They are also written when debug logging is enabled.
+     */
+    @Parameter(property = "teamcity.dumpDependencyTree", defaultValue = "false")
+    private boolean dumpDependencyTree;
+
     @Component(hint = "default")
     private DependencyCollectorBuilder dependencyCollectorBuilder;
 
@@ -72,13 +81,84 @@ public abstract class BaseTeamCityMojo extends AbstractMojo {
     @Component
     private ArchiverManager archiverManager;
 
+    @Component
+    private ArtifactHandlerManager artifactHandlerManager;
+
+    /**
+     * Collect the dependency graph even if the snapshot stored in the work directory is up-to-date.
+     */
+    @Parameter(property = "teamcity.refreshDependencyGraph", defaultValue = "false")
+    private boolean refreshDependencyGraph;
+
+    /**
+     * Keep an index of the artifacts resolved from the local repository in the work directory and look them up there
+     * before asking the repository system. Speeds up warm and offline builds.
+     */
+    @Parameter(property = "teamcity.localRepositoryIndex", defaultValue = "false")
+    private boolean localRepositoryIndex;
+
+    /**
+     * Number of threads copying dependencies and extra files into the work directory, twice the number of processors
+     * if not positive.
+     */
+    @Parameter(property = "teamcity.copyParallelism", defaultValue = "0")
+    private int copyParallelism;
+
+    /**
+     * Compare the content of extra files, Kotlin DSL descriptors and UI schemas that differ from the staged ones only
+     * by the modification time instead of copying them again.
+     */
+    @Parameter(property = "teamcity.syncByContent", defaultValue = "false")
+    private boolean syncByContent;
+
+    /**
+     * Size in bytes starting from which files are copied with <code>FileChannel.transferTo</code>, bypassing Java
+     * buffers. Such copies are reported with their throughput.
+     */
+    @Parameter(property = "teamcity.largeFileThreshold", defaultValue = "16777216")
+    private long largeFileThreshold = LargeFileCopy.DEFAULT_THRESHOLD;
+
+    /**
+     * Glob patterns of file names stored in plugin zips without compression, as they are usually compressed already.
+     */
+    @Parameter(property = "teamcity.storedEntries", defaultValue = "*.jar,*.zip,*.gz,*.png")
+    private List<String> storedEntries;
+
+    /**
+     * Number of threads compressing entries of plugin zips, the number of processors if not positive. The zips are the
+     * same whatever the number.
+     */
+    @Parameter(property = "teamcity.zipParallelism", defaultValue = "0")
+    private int zipParallelism;
+
+    /**
+     * Put dependencies, extras and other copied files into plugin zips straight from their sources instead of copying
+     * them into the exploded plugin directories first. The directories then hold only generated files.
+     */
+    @Parameter(property = "teamcity.directArchive", defaultValue = "false")
+    private boolean directArchive;
+
     @Parameter
     private MavenArchiveConfiguration archive = new MavenArchiveConfiguration();
 
 
     public WorkflowUtil getWorkflowUtil() throws IOException {
         ResolveUtil resolve = new ResolveUtil(getLog(), repoSystem, repositories, repoSession);
-        return new WorkflowUtil(getLog(), project, workDirectory.toPath(), resolve, tokens, artifactFactory, archiverManager, outputTimestamp, session);
+        if (localRepositoryIndex && repoSession != null && repoSession.getLocalRepository() != null) {
+            resolve.setLocalRepositoryIndex(LocalRepositoryIndex.load(getLog(), workDirectory.toPath().resolve(LOCAL_REPOSITORY_INDEX),
+                    repoSession.getLocalRepository().getBasedir().toPath()));
+        }
+        WorkflowUtil util = new WorkflowUtil(getLog(), project, workDirectory.toPath(), resolve, tokens, artifactFactory, archiverManager, outputTimestamp, session);
+        util.setDumpDependencyTree(dumpDependencyTree);
+        util.setCopyExecutor(new CopyExecutor(copyParallelism));
+        util.setSyncByContent(syncByContent);
+        util.setLargeFileThreshold(largeFileThreshold);
+        if (storedEntries != null)
+            util.setStoredEntries(storedEntries);
+        util.setZipParallelism(zipParallelism);
+        if (directArchive)
+            util.setStagingPlan(new StagingPlan());
+        return util;
     }
 
 
@@ -90,14 +170,34 @@ public abstract class BaseTeamCityMojo extends AbstractMojo {
         DependencyNode rootNode;
         try {
             ArtifactFilter artifactFilter = createResolvingArtifactFilter(SCOPE_RUNTIME);
+            DependencyGraphCache cache = DependencyGraphCache.of(session);
+            String cacheKey = DependencyGraphCache.key(getProject(), SCOPE_RUNTIME, artifactFilter);
+            rootNode = cache.get(cacheKey);
+            if (rootNode != null) {
+                getLog().info("Reusing dependency graph of " + getProject().getId() + " collected earlier in this session");
+                util.reportDependencyTree(rootNode);
+                return rootNode;
+            }
+            DependencyGraphSnapshot snapshot = new DependencyGraphSnapshot(getLog(), workDirectory.toPath().resolve(DEPENDENCY_GRAPH_SNAPSHOT), artifactHandlerManager);
+            String fingerprint = DependencyGraphSnapshot.fingerprint(getProject(), session, cacheKey);
+            if (!refreshDependencyGraph) {
+                rootNode = snapshot.read(fingerprint);
+                if (rootNode != null) {
+                    getLog().info("Dependency graph of " + getProject().getId() + " is up-to-date, loaded from " + DEPENDENCY_GRAPH_SNAPSHOT);
+                    cache.put(cacheKey, rootNode);
+                    util.reportDependencyTree(rootNode);
+                    return rootNode;
+                }
+            }
             ProjectBuildingRequest buildingRequest =
                     new DefaultProjectBuildingRequest(session.getProjectBuildingRequest());
             buildingRequest.setProject(getProject());
 
             rootNode = dependencyCollectorBuilder.collectDependencyGraph(buildingRequest, artifactFilter);
-            String dependencyTreeString = serializeDependencyTree(rootNode, util);
-            getLog().warn("Dependency Tree:\n" + dependencyTreeString);
-        } catch (DependencyCollectorBuilderException exception) {
+            cache.put(cacheKey, rootNode);
+            snapshot.write(fingerprint, rootNode);
+            util.reportDependencyTree(rootNode);
+        } catch (DependencyCollectorBuilderException | IOException exception) {
             throw new MojoExecutionException("Cannot build project dependency graph", exception);
         }
 
@@ -118,17 +218,4 @@ public abstract class BaseTeamCityMojo extends AbstractMojo {
 
         return filter;
     }
-
-    private String serializeDependencyTree(DependencyNode theRootNode, WorkflowUtil util) {
-        StringWriter writer = new StringWriter();
-
-        DependencyNodeVisitor visitor = util.getSerializingDependencyNodeVisitor(writer);
-
-        // TODO: remove the need for this when the serializer can calculate last nodes from visitor calls only
-        visitor = new BuildingDependencyNodeVisitor(visitor);
-
-        theRootNode.accept(visitor);
-
-        return writer.toString();
-    }
 }
@@ -0,0 +1,209 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.apache.maven.shared.dependency.graph.traversal.DependencyNodeVisitor;
+
+import java.util.*;
+
+import static org.jetbrains.teamcity.ServerPluginWorkflow.TEAMCITY_PLUGIN_CLASSIFIER;
+import static org.jetbrains.teamcity.agent.AgentPluginWorkflow.TEAMCITY_AGENT_PLUGIN_CLASSIFIER;
+
+/**
+ * Flat form of a dependency tree, built once from its root node.
+ * <p>
+ * Nodes are numbered in the tree (pre-)order, so the root is <code>0</code> and the subtree of node <code>i</code> is
+ * the range <code>[i, getSubtreeEnd(i))</code>; the children of a node are its next node and then the nodes right
+ * after the subtrees of their previous siblings. Artifact coordinates <code>groupId:artifactId:type:baseVersion</code>
+ * are interned into key ids, so queries over the tree work with int arrays instead of walking the node objects.
+ */
+public class CompactDependencyGraph {
+    private final DependencyNode rootNode;
+    private final DependencyNode[] nodes;
+    private final int[] parents;
+    private final int[] subtreeEnds;
+    private final int[] keyIds;
+    /**
+     * Key id of the conflict winner or <code>-1</code> if the node isn't conflicted or its winner isn't in the tree.
+     */
+    private final int[] winnerKeyIds;
+    private final BitSet conflicted = new BitSet();
+    private final BitSet pluginParents = new BitSet();
+    private final Artifact[] keyArtifacts;
+    /**
+     * Nodes of key <code>k</code> in the tree order are <code>keyNodes[keyNodeOffsets[k] .. keyNodeOffsets[k + 1])</code>.
+     */
+    private final int[] keyNodeOffsets;
+    private final int[] keyNodes;
+    private final int maxDepth;
+    private final Map<DependencyNode, Integer> indexes;
+
+    public CompactDependencyGraph(DependencyNode rootNode, ConflictInfo conflictInfo) {
+        this.rootNode = rootNode;
+        List<DependencyNode> nodeList = new ArrayList<>();
+        List<Integer> parentList = new ArrayList<>();
+        List<Integer> endList = new ArrayList<>();
+        int[] depth = new int[2]; // current, max
+        rootNode.accept(new DependencyNodeVisitor() {
+            private final Deque<Integer> path = new ArrayDeque<>();
+
+            @Override
+            public boolean visit(DependencyNode node) {
+                parentList.add(path.isEmpty() ? -1 : path.peek());
+                path.push(nodeList.size());
+                nodeList.add(node);
+                endList.add(0);
+                depth[1] = Math.max(depth[1], ++depth[0]);
+                return true;
+            }
+
+            @Override
+            public boolean endVisit(DependencyNode node) {
+                endList.set(path.pop(), nodeList.size());
+                depth[0]--;
+                return true;
+            }
+        });
+        int size = nodeList.size();
+        nodes = nodeList.toArray(new DependencyNode[0]);
+        parents = new int[size];
+        subtreeEnds = new int[size];
+        keyIds = new int[size];
+        winnerKeyIds = new int[size];
+        maxDepth = depth[1];
+        indexes = new IdentityHashMap<>(size);
+
+        Map<String, Integer> keys = new HashMap<>();
+        List<Artifact> artifacts = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            indexes.put(nodes[i], i);
+            parents[i] = parentList.get(i);
+            subtreeEnds[i] = endList.get(i);
+            Artifact a = nodes[i].getArtifact();
+            keyIds[i] = keys.computeIfAbsent(key(a.getGroupId(), a.getArtifactId(), a.getType(), a.getBaseVersion()), it -> {
+                artifacts.add(a);
+                return artifacts.size() - 1;
+            });
+            if (parents[i] >= 0) {
+                String parentClassifier = nodes[parents[i]].getArtifact().getClassifier();
+                if (TEAMCITY_PLUGIN_CLASSIFIER.equals(parentClassifier) || TEAMCITY_AGENT_PLUGIN_CLASSIFIER.equals(parentClassifier))
+                    pluginParents.set(i);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            String winnerVersion = conflictInfo.getWinnerVersion(nodes[i]);
+            winnerKeyIds[i] = -1;
+            if (winnerVersion != null) {
+                conflicted.set(i);
+                Artifact a = nodes[i].getArtifact();
+                winnerKeyIds[i] = keys.getOrDefault(key(a.getGroupId(), a.getArtifactId(), a.getType(), winnerVersion), -1);
+            }
+        }
+        keyArtifacts = artifacts.toArray(new Artifact[0]);
+
+        keyNodeOffsets = new int[keyArtifacts.length + 1];
+        for (int keyId : keyIds) {
+            keyNodeOffsets[keyId + 1]++;
+        }
+        for (int k = 0; k < keyArtifacts.length; k++) {
+            keyNodeOffsets[k + 1] += keyNodeOffsets[k];
+        }
+        keyNodes = new int[size];
+        int[] filled = Arrays.copyOf(keyNodeOffsets, keyArtifacts.length);
+        for (int i = 0; i < size; i++) {
+            keyNodes[filled[keyIds[i]]++] = i;
+        }
+    }
+
+    public DependencyNode getRootNode() {
+        return rootNode;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getConflictedCount() {
+        return conflicted.cardinality();
+    }
+
+    public DependencyNode getNode(int node) {
+        return nodes[node];
+    }
+
+    /**
+     * @return index of the node or <code>-1</code> if the node isn't in the tree
+     */
+    public int indexOf(DependencyNode node) {
+        Integer index = indexes.get(node);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the parent of the node or <code>-1</code> for the root
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * @return the index right after the last node of the subtree of the node
+     */
+    public int getSubtreeEnd(int node) {
+        return subtreeEnds[node];
+    }
+
+    public int getKeyId(int node) {
+        return keyIds[node];
+    }
+
+    public int getKeyCount() {
+        return keyArtifacts.length;
+    }
+
+    /**
+     * @return artifact of the first node with the key, all nodes with the key share its coordinates
+     */
+    public Artifact getKeyArtifact(int keyId) {
+        return keyArtifacts[keyId];
+    }
+
+    public boolean isConflicted(int node) {
+        return conflicted.get(node);
+    }
+
+    /**
+     * Nodes with the same groupId, artifactId and type as the given conflicted node but with the winner version,
+     * in the tree order. The node itself is never returned.
+     */
+    public int[] findSubstitutions(int node) {
+        int winnerKeyId = winnerKeyIds[node];
+        if (winnerKeyId < 0)
+            return new int[0];
+        int from = keyNodeOffsets[winnerKeyId];
+        int to = keyNodeOffsets[winnerKeyId + 1];
+        int[] result = new int[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (keyNodes[i] != node)
+                result[count++] = keyNodes[i];
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return <code>true</code> if the parent of the node is a TeamCity server or agent plugin, whose dependencies are
+     * packed into the plugin itself
+     */
+    public boolean hasPluginParent(int node) {
+        return node >= 0 && pluginParents.get(node);
+    }
+
+    public static String key(String groupId, String artifactId, String type, String version) {
+        return groupId + ":" + artifactId + ":" + type + ":" + version;
+    }
+}
@@ -0,0 +1,79 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.apache.maven.shared.dependency.graph.internal.ConflictData;
+
+import java.lang.reflect.Field;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides conflict winner versions of the nodes of a verbose dependency graph.
+ * <p>
+ * {@link ConflictData} is kept in a private field of the internal <code>VerboseDependencyNode</code>, so it is read
+ * reflectively. The field is looked up once per node class and winner versions are cached per node, because
+ * duplicates omitted in favour of a node share its artifact coordinates.
+ */
+public class ConflictInfo {
+    private static final String DATA_FIELD = "data";
+    private static final Map<Class<?>, Optional<Field>> ACCESSORS = new ConcurrentHashMap<>();
+
+    private final Log log;
+    private final Map<DependencyNode, Optional<String>> winnerVersions = new IdentityHashMap<>();
+    private int substitutedCount;
+
+    public ConflictInfo(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @return version of the node which won the conflict against the given node or <code>null</code> if the node
+     * itself is included into the graph
+     */
+    public String getWinnerVersion(DependencyNode node) {
+        return winnerVersions.computeIfAbsent(node, it -> Optional.ofNullable(getConflictData(it)).map(ConflictData::getWinnerVersion)).orElse(null);
+    }
+
+    public void substituted() {
+        substitutedCount++;
+    }
+
+    public int getSubstitutedCount() {
+        return substitutedCount;
+    }
+
+    public ConflictData getConflictData(DependencyNode node) {
+        Optional<Field> accessor = ACCESSORS.computeIfAbsent(node.getClass(), this::findAccessor);
+        if (!accessor.isPresent())
+            return null;
+        try {
+            Object data = accessor.get().get(node);
+            return data instanceof ConflictData ? (ConflictData) data : null;
+        } catch (IllegalAccessException e) {
+            log.warn("Can't read conflict data of " + node.getArtifact(), e);
+            return null;
+        }
+    }
+
+    private Optional<Field> findAccessor(Class<?> nodeClass) {
+        for (Class<?> c = nodeClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            try {
+                Field f = c.getDeclaredField(DATA_FIELD);
+                if (ConflictData.class.isAssignableFrom(f.getType())) {
+                    f.setAccessible(true);
+                    return Optional.of(f);
+                }
+            } catch (NoSuchFieldException ignored) {
+                // look up in the superclass
+            } catch (RuntimeException e) {
+                log.warn("Can't access conflict data of " + nodeClass.getName() + ", conflicted dependencies will be taken as is", e);
+                return Optional.empty();
+            }
+        }
+        log.debug("No conflict data in " + nodeClass.getName());
+        return Optional.empty();
+    }
+}
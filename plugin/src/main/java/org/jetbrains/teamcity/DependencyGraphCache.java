@@ -0,0 +1,71 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.resolver.filter.ArtifactFilter;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Profile;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.SessionData;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Dependency graphs collected during the current Maven session, so that several executions of the plugin in one module
+ * (e.g. <code>build-agent</code> and <code>build</code>) collect the graph only once.
+ * <p>
+ * Graphs are keyed by the project coordinates, its active profiles and the set of its resolved dependencies, and
+ * kept in the session data of the repository session.
+ */
+public class DependencyGraphCache {
+    private static final Object SESSION_KEY = DependencyGraphCache.class.getName();
+
+    private final Map<String, DependencyNode> graphs = new ConcurrentHashMap<>();
+
+    /**
+     * @return the cache of the session or a new one not shared with anyone if the session has no repository session
+     */
+    public static DependencyGraphCache of(MavenSession session) {
+        RepositorySystemSession repositorySession = session == null ? null : session.getRepositorySession();
+        if (repositorySession == null)
+            return new DependencyGraphCache();
+        SessionData data = repositorySession.getData();
+        DependencyGraphCache cache = (DependencyGraphCache) data.get(SESSION_KEY);
+        while (cache == null) {
+            data.set(SESSION_KEY, null, new DependencyGraphCache());
+            cache = (DependencyGraphCache) data.get(SESSION_KEY);
+        }
+        return cache;
+    }
+
+    public DependencyNode get(String key) {
+        return graphs.get(key);
+    }
+
+    public void put(String key, DependencyNode rootNode) {
+        graphs.put(key, rootNode);
+    }
+
+    /**
+     * @param artifactFilter the filter the graph is collected with, only dependencies accepted by it are taken into account
+     */
+    public static String key(MavenProject project, String scope, ArtifactFilter artifactFilter) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(project.getGroupId()).append(':').append(project.getArtifactId()).append(':').append(project.getVersion());
+        sb.append('|').append(scope);
+        sb.append('|').append(project.getActiveProfiles().stream().map(Profile::getId).sorted().collect(Collectors.joining(",")));
+        sb.append('|').append(project.getArtifacts().stream().filter(it -> artifactFilter == null || artifactFilter.include(it)).map(DependencyGraphCache::artifactKey).sorted().collect(Collectors.joining(",")));
+        return digest(sb.toString());
+    }
+
+    private static String artifactKey(Artifact a) {
+        return a.getId() + ":" + a.getScope() + ":" + a.isOptional();
+    }
+
+    private static String digest(String s) {
+        return Digests.sha256(s);
+    }
+}
@@ -0,0 +1,234 @@
+package org.jetbrains.teamcity;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.manager.ArtifactHandlerManager;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Exclusion;
+import org.apache.maven.model.io.xpp3.MavenXpp3Writer;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.apache.maven.shared.dependency.graph.internal.ConflictData;
+import org.apache.maven.shared.dependency.graph.internal.DefaultDependencyNode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Compact on-disk form of a collected dependency graph including the conflict data, which lets warm rebuilds skip
+ * the graph collection.
+ * <p>
+ * The snapshot is valid while its fingerprint matches: the key of {@link DependencyGraphCache}, the effective POMs of
+ * the project and of the reactor projects it depends on, and the files of the resolved SNAPSHOT dependencies.
+ */
+public class DependencyGraphSnapshot {
+    private static final int MAGIC = 0x54434447; // TCDG
+    private static final int FORMAT_VERSION = 1;
+
+    private final Log log;
+    private final Path file;
+    private final ArtifactHandlerManager artifactHandlerManager;
+    private final ConflictInfo conflictInfo;
+
+    public DependencyGraphSnapshot(Log log, Path file, ArtifactHandlerManager artifactHandlerManager) {
+        this.log = log;
+        this.file = file;
+        this.artifactHandlerManager = artifactHandlerManager;
+        this.conflictInfo = new ConflictInfo(log);
+    }
+
+    public static String fingerprint(MavenProject project, MavenSession session, String graphKey) throws IOException {
+        MessageDigest md = Digests.newDigest(Digests.SHA_256);
+        try (Writer writer = new OutputStreamWriter(new DigestOutputStream(NullOutputStream.INSTANCE, md), StandardCharsets.UTF_8)) {
+            writer.write(FORMAT_VERSION + "|" + graphKey + "\n");
+            MavenXpp3Writer pomWriter = new MavenXpp3Writer();
+            pomWriter.write(writer, project.getModel());
+            Set<String> dependencies = new HashSet<>();
+            for (Artifact a : project.getArtifacts()) {
+                dependencies.add(a.getGroupId() + ":" + a.getArtifactId() + ":" + a.getVersion());
+                if (a.isSnapshot() && a.getFile() != null) {
+                    writer.write(a.getId() + "|" + a.getFile().lastModified() + "|" + a.getFile().length() + "\n");
+                }
+            }
+            if (session != null && session.getProjects() != null) {
+                for (MavenProject p : session.getProjects()) {
+                    if (p != project && dependencies.contains(p.getGroupId() + ":" + p.getArtifactId() + ":" + p.getVersion()))
+                        pomWriter.write(writer, p.getModel());
+                }
+            }
+        }
+        return Digests.toHex(md.digest());
+    }
+
+    /**
+     * @return the graph stored in the snapshot or <code>null</code> if there is no snapshot with the given fingerprint
+     */
+    public DependencyNode read(String fingerprint) {
+        if (!Files.isRegularFile(file))
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !fingerprint.equals(in.readUTF())) {
+                log.debug("Dependency graph snapshot " + file + " is outdated");
+                return null;
+            }
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            return readNode(in, strings, null);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can't read dependency graph snapshot " + file + ", collecting the graph", e);
+            return null;
+        }
+    }
+
+    public void write(String fingerprint, DependencyNode rootNode) {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        try {
+            try (DataOutputStream out = new DataOutputStream(nodes)) {
+                writeNode(out, strings, rootNode);
+            }
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(fingerprint);
+                out.writeInt(strings.size());
+                for (String s : strings.keySet()) {
+                    out.writeUTF(s);
+                }
+                nodes.writeTo(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Can't write dependency graph snapshot " + file, e);
+        }
+    }
+
+    private void writeNode(DataOutputStream out, Map<String, Integer> strings, DependencyNode node) throws IOException {
+        Artifact a = node.getArtifact();
+        writeString(out, strings, a.getGroupId());
+        writeString(out, strings, a.getArtifactId());
+        writeString(out, strings, a.getVersion());
+        writeString(out, strings, a.getScope());
+        writeString(out, strings, a.getType());
+        writeString(out, strings, a.getClassifier());
+        out.writeBoolean(a.isOptional());
+        writeString(out, strings, node.getPremanagedVersion());
+        writeString(out, strings, node.getPremanagedScope());
+        writeString(out, strings, node.getVersionConstraint());
+        out.writeByte(node.getOptional() == null ? -1 : node.getOptional() ? 1 : 0);
+        List<Exclusion> exclusions = node.getExclusions();
+        out.writeInt(exclusions == null ? -1 : exclusions.size());
+        if (exclusions != null) {
+            for (Exclusion e : exclusions) {
+                writeString(out, strings, e.getGroupId());
+                writeString(out, strings, e.getArtifactId());
+            }
+        }
+        ConflictData data = conflictInfo.getConflictData(node);
+        out.writeBoolean(data != null);
+        if (data != null) {
+            writeString(out, strings, data.getWinnerVersion());
+            writeString(out, strings, data.getIgnoredScope());
+            writeString(out, strings, data.getOriginalScope());
+            out.writeByte(data.getOriginaOptionality() == null ? -1 : data.getOriginaOptionality() ? 1 : 0);
+        }
+        List<DependencyNode> children = node.getChildren();
+        out.writeInt(children == null ? 0 : children.size());
+        if (children != null) {
+            for (DependencyNode child : children) {
+                writeNode(out, strings, child);
+            }
+        }
+    }
+
+    private DependencyNode readNode(DataInputStream in, String[] strings, DependencyNode parent) throws IOException {
+        String groupId = readString(in, strings);
+        String artifactId = readString(in, strings);
+        String version = readString(in, strings);
+        String scope = readString(in, strings);
+        String type = readString(in, strings);
+        String classifier = readString(in, strings);
+        boolean artifactOptional = in.readBoolean();
+        Artifact artifact = new DefaultArtifact(groupId, artifactId, VersionRange.createFromVersion(version), scope, type, classifier,
+                artifactHandlerManager.getArtifactHandler(type), artifactOptional);
+        String premanagedVersion = readString(in, strings);
+        String premanagedScope = readString(in, strings);
+        String versionConstraint = readString(in, strings);
+        Boolean optional = readBoolean(in);
+        int exclusionCount = in.readInt();
+        List<Exclusion> exclusions = null;
+        if (exclusionCount >= 0) {
+            exclusions = new ArrayList<>(exclusionCount);
+            for (int i = 0; i < exclusionCount; i++) {
+                Exclusion e = new Exclusion();
+                e.setGroupId(readString(in, strings));
+                e.setArtifactId(readString(in, strings));
+                exclusions.add(e);
+            }
+        }
+        ConflictData data = null;
+        if (in.readBoolean()) {
+            data = new ConflictData(readString(in, strings), readString(in, strings));
+            data.setOriginalScope(readString(in, strings));
+            data.setOriginaOptionality(readBoolean(in));
+        }
+        SnapshotDependencyNode node = new SnapshotDependencyNode(parent, artifact, premanagedVersion, premanagedScope, versionConstraint, optional, exclusions, data);
+        int childCount = in.readInt();
+        List<DependencyNode> children = new ArrayList<>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            children.add(readNode(in, strings, node));
+        }
+        node.setChildren(children);
+        return node;
+    }
+
+    private static void writeString(DataOutputStream out, Map<String, Integer> strings, String s) throws IOException {
+        out.writeInt(s == null ? -1 : strings.computeIfAbsent(s, it -> strings.size()));
+    }
+
+    private static String readString(DataInputStream in, String[] strings) throws IOException {
+        int i = in.readInt();
+        return i < 0 ? null : strings[i];
+    }
+
+    private static Boolean readBoolean(DataInputStream in) throws IOException {
+        byte b = in.readByte();
+        return b < 0 ? null : b == 1;
+    }
+
+    /**
+     * Node restored from a snapshot. Keeps its conflict data in the <code>data</code> field the same way the verbose
+     * nodes of maven-dependency-tree do, so {@link ConflictInfo} reads both alike.
+     */
+    static class SnapshotDependencyNode extends DefaultDependencyNode {
+        private final ConflictData data;
+
+        SnapshotDependencyNode(DependencyNode parent, Artifact artifact, String premanagedVersion, String premanagedScope,
+                               String versionConstraint, Boolean optional, List<Exclusion> exclusions, ConflictData data) {
+            super(parent, artifact, premanagedVersion, premanagedScope, versionConstraint, optional, exclusions);
+            this.data = data;
+        }
+
+        @Override
+        public String toNodeString() {
+            if (data == null || data.getWinnerVersion() == null)
+                return String.valueOf(getArtifact());
+            if (data.getWinnerVersion().equals(getArtifact().getVersion()))
+                return "(" + getArtifact() + " - omitted for duplicate)";
+            return "(" + getArtifact() + " - omitted for conflict with " + data.getWinnerVersion() + ")";
+        }
+    }
+}
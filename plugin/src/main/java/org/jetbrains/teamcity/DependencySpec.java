@@ -0,0 +1,24 @@
+package org.jetbrains.teamcity;
+
+import lombok.Data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dependencies selection: a comma separated list of patterns (or <code>.</code>/<code>*</code> for the project itself)
+ * which are taken with their transitive dependencies except for the ones matching exclusions.
+ */
+@Data
+public class DependencySpec {
+    private final String spec;
+    private final List<String> exclusions;
+
+    public boolean isProjectItself() {
+        return Arrays.asList("*", ".").contains(spec);
+    }
+
+    public List<String> getPatterns() {
+        return Arrays.asList(spec.split(","));
+    }
+}
@@ -0,0 +1,96 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.resolver.filter.ArtifactFilter;
+import org.apache.maven.plugin.logging.Log;
+
+import java.util.*;
+
+/**
+ * Selects dependencies for {@link DependencySpec}s on a {@link CompactDependencyGraph}.
+ * <p>
+ * For every spec the result is the same as walking each node matching the spec with its transitive dependencies,
+ * one after another, skipping subtrees of excluded nodes and of nodes whose parent is a TeamCity plugin.
+ * Conflicted nodes are replaced by their winners. Patterns are matched once per artifact key of the graph.
+ */
+public class DependencySpecTraversal {
+    private final Log log;
+    private final CompactDependencyGraph graph;
+    private final ConflictInfo conflictInfo;
+
+    public DependencySpecTraversal(Log log, CompactDependencyGraph graph, ConflictInfo conflictInfo) {
+        this.log = log;
+        this.graph = graph;
+        this.conflictInfo = conflictInfo;
+    }
+
+    public Map<DependencySpec, List<Artifact>> traverse(Collection<DependencySpec> specs) {
+        Map<DependencySpec, List<Artifact>> result = new LinkedHashMap<>();
+        for (DependencySpec spec : new LinkedHashSet<>(specs)) {
+            result.put(spec, select(spec));
+        }
+        return result;
+    }
+
+    private List<Artifact> select(DependencySpec spec) {
+        KeyFilter includes = spec.isProjectItself() ? null : new KeyFilter(ArtifactPatternMatcher.includes(spec.getPatterns()));
+        // getting transitive dependencies excluding ones specified in exclusions filter. Not to include teamcity-core by mistake for example.
+        KeyFilter exclusions = new KeyFilter(ArtifactPatternMatcher.excludes(spec.getExclusions()));
+        Set<Artifact> result = new LinkedHashSet<>();
+        int substituted = 0;
+        for (int seed = 0; seed < graph.size(); seed++) {
+            if (includes == null ? seed != 0 : !includes.accept(graph.getKeyId(seed)))
+                continue;
+            int end = graph.getSubtreeEnd(seed);
+            for (int node = seed; node < end; ) {
+                if (graph.hasPluginParent(node) || !exclusions.accept(graph.getKeyId(node))) {
+                    node = graph.getSubtreeEnd(node);
+                    continue;
+                }
+                if (graph.isConflicted(node)) {
+                    // conflicted dependency is in the list, resolve it to the right version
+                    substituted++;
+                    conflictInfo.substituted();
+                    for (int substitution : graph.findSubstitutions(node)) {
+                        collect(substitution, exclusions, result);
+                    }
+                } else {
+                    result.add(graph.getNode(node).getArtifact());
+                }
+                node++;
+            }
+        }
+        log.info("Substituted " + substituted + " conflicted dependencies according to spec " + spec.getSpec() + " (" + conflictInfo.getSubstitutedCount() + " in total)");
+        return new ArrayList<>(result);
+    }
+
+    private void collect(int root, KeyFilter exclusions, Set<Artifact> result) {
+        int end = graph.getSubtreeEnd(root);
+        for (int node = root; node < end; ) {
+            if (!exclusions.accept(graph.getKeyId(node))) {
+                node = graph.getSubtreeEnd(node);
+            } else {
+                result.add(graph.getNode(node).getArtifact());
+                node++;
+            }
+        }
+    }
+
+    /**
+     * Artifact filter applied once per key of the graph.
+     */
+    private class KeyFilter {
+        private final ArtifactFilter filter;
+        private final byte[] results = new byte[graph.getKeyCount()];
+
+        private KeyFilter(ArtifactFilter filter) {
+            this.filter = filter;
+        }
+
+        private boolean accept(int keyId) {
+            if (results[keyId] == 0)
+                results[keyId] = filter.include(graph.getKeyArtifact(keyId)) ? (byte) 1 : (byte) 2;
+            return results[keyId] == 1;
+        }
+    }
+}
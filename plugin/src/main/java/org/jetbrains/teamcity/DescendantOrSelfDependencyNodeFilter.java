@@ -19,6 +19,9 @@ package org.jetbrains.teamcity;
  * under the License.
  */
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -43,6 +46,17 @@ public class DescendantOrSelfDependencyNodeFilter
     private final List<DependencyNode> descendantNodes;
     private final DependencyNodeFilter exclusionFilter;
 
+    /**
+     * The graph the nodes are numbered in, or <code>null</code> if ancestors are looked up by walking parents.
+     */
+    private final CompactDependencyGraph graph;
+
+    /**
+     * Sorted disjoint subtree ranges <code>[starts[i], ends[i])</code> of the nodes in the graph.
+     */
+    private final int[] starts;
+    private final int[] ends;
+
     // constructors -----------------------------------------------------------
 
     public DescendantOrSelfDependencyNodeFilter(DependencyNode descendantNode, DependencyNodeFilter exclusionFilter)
@@ -61,6 +75,50 @@ public class DescendantOrSelfDependencyNodeFilter
     {
         this.descendantNodes = descendantNodes;
         this.exclusionFilter = exclusionFilter;
+        this.graph = null;
+        this.starts = new int[0];
+        this.ends = new int[0];
+    }
+
+    /**
+     * Creates a dependency node filter that only accepts descendants-or-self of the specified nodes, checking them
+     * against the subtree ranges of the nodes in the graph instead of walking parents.
+     *
+     * @param graph the graph of the tree the nodes belong to
+     * @param descendantNodes the nodes to accept descendants-or-self of
+     * @param exclusionFilter
+     */
+    public DescendantOrSelfDependencyNodeFilter(CompactDependencyGraph graph, Collection<DependencyNode> descendantNodes, DependencyNodeFilter exclusionFilter)
+    {
+        List<DependencyNode> unknownNodes = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        for ( DependencyNode descendantNode : descendantNodes )
+        {
+            int index = graph.indexOf( descendantNode );
+            if ( index < 0 )
+                unknownNodes.add( descendantNode );
+            else
+                indexes.add( index );
+        }
+        Collections.sort( indexes );
+        int[] starts = new int[indexes.size()];
+        int[] ends = new int[indexes.size()];
+        int count = 0;
+        for ( int index : indexes )
+        {
+            // subtrees either nest or don't overlap, so a node inside the previous range adds nothing
+            if ( count == 0 || index >= ends[count - 1] )
+            {
+                starts[count] = index;
+                ends[count] = graph.getSubtreeEnd( index );
+                count++;
+            }
+        }
+        this.descendantNodes = unknownNodes;
+        this.exclusionFilter = exclusionFilter;
+        this.graph = graph;
+        this.starts = Arrays.copyOf( starts, count );
+        this.ends = Arrays.copyOf( ends, count );
     }
 
     // DependencyNodeFilter methods -------------------------------------------
@@ -72,6 +130,10 @@ public class DescendantOrSelfDependencyNodeFilter
     public boolean accept( DependencyNode node )
     {
         if (exclusionFilter.accept(node)) {
+            if ( graph != null && isInRanges( graph.indexOf( node ) ) )
+            {
+                return true;
+            }
             for (DependencyNode descendantNode : descendantNodes) {
                 if (isDescendantOrSelf(node, descendantNode)) {
                     return true;
@@ -84,6 +146,20 @@ public class DescendantOrSelfDependencyNodeFilter
 
     // private methods --------------------------------------------------------
 
+    private boolean isInRanges( int index )
+    {
+        if ( index < 0 )
+        {
+            return false;
+        }
+        int i = Arrays.binarySearch( starts, index );
+        if ( i < 0 )
+        {
+            i = -i - 2;
+        }
+        return i >= 0 && index < ends[i];
+    }
+
     /**
      * Gets whether the first dependency node is an ancestor-or-self of the second.
      * 
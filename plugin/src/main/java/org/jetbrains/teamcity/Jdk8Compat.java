@@ -33,12 +33,6 @@ public final class Jdk8Compat {
         return FileSystems.getDefault().getPath(first, more);
     }
 
-    public static <K, V> Map<K,V> ofMap(K create, V aTrue) {
-        HashMap<K, V> m = new HashMap<>();
-        m.put(create, aTrue);
-        return m;
-    }
-
     public static <K, V> Map<K,V> ofMap(K create, V aTrue, K create1, V aTrue1) {
         HashMap<K, V> m = new HashMap<>();
         m.put(create, aTrue);
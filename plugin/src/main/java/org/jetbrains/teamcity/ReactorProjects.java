@@ -0,0 +1,122 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.SessionData;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Projects of the reactor indexed by <code>groupId:artifactId:version</code> and by their build directories, built
+ * once per Maven session and kept in the session data of the repository session.
+ */
+public class ReactorProjects {
+    private static final Object SESSION_KEY = ReactorProjects.class.getName();
+
+    private final List<MavenProject> projects;
+    private final Map<String, MavenProject> projectsByKey = new HashMap<>();
+    private final Map<Path, MavenProject> projectsByBuildDirectory = new HashMap<>();
+
+    public ReactorProjects(List<MavenProject> projects) {
+        this.projects = projects == null ? Collections.emptyList() : projects;
+        for (MavenProject project : this.projects) {
+            projectsByKey.putIfAbsent(key(project.getGroupId(), project.getArtifactId(), project.getVersion()), project);
+            if (project.getBuild() != null && project.getBuild().getDirectory() != null)
+                projectsByBuildDirectory.putIfAbsent(normalize(project.getBuild().getDirectory()), project);
+        }
+    }
+
+    /**
+     * @return the index of the session projects, shared by all executions in the session
+     */
+    public static ReactorProjects of(MavenSession session) {
+        List<MavenProject> projects = session == null ? null : session.getProjects();
+        RepositorySystemSession repositorySession = session == null ? null : session.getRepositorySession();
+        if (repositorySession == null)
+            return new ReactorProjects(projects);
+        SessionData data = repositorySession.getData();
+        ReactorProjects index = (ReactorProjects) data.get(SESSION_KEY);
+        while (index == null || index.projects != projects) {
+            data.set(SESSION_KEY, index, new ReactorProjects(projects));
+            index = (ReactorProjects) data.get(SESSION_KEY);
+        }
+        return index;
+    }
+
+    /**
+     * @return the reactor project with the same groupId, artifactId and version as the artifact or <code>null</code>
+     */
+    public MavenProject findProject(Artifact artifact) {
+        return projectsByKey.get(key(artifact.getGroupId(), artifact.getArtifactId(), artifact.getVersion()));
+    }
+
+    public boolean isReactorProject(Artifact artifact) {
+        return findProject(artifact) != null;
+    }
+
+    /**
+     * Finds the file of the artifact already built in the reactor, either the main artifact of its project or one of
+     * the attached ones with the same type and classifier.
+     *
+     * @return the file or <code>null</code> if the artifact isn't built in the reactor yet or isn't a reactor one
+     */
+    public File findBuiltFile(Artifact artifact) {
+        MavenProject project = findProject(artifact);
+        if (project == null)
+            return null;
+        if (isSameArtifact(project.getArtifact(), artifact))
+            return builtFile(project.getArtifact());
+        for (Artifact attached : project.getAttachedArtifacts()) {
+            if (isSameArtifact(attached, artifact))
+                return builtFile(attached);
+        }
+        return null;
+    }
+
+    private static boolean isSameArtifact(Artifact projectArtifact, Artifact artifact) {
+        return projectArtifact != null
+                && Objects.equals(projectArtifact.getType(), artifact.getType())
+                && Objects.equals(emptyToNull(projectArtifact.getClassifier()), emptyToNull(artifact.getClassifier()));
+    }
+
+    private static File builtFile(Artifact artifact) {
+        // before packaging the main artifact points to the classes directory, that is resolved as usual
+        File file = artifact.getFile();
+        return file != null && file.isFile() ? file : null;
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    /**
+     * @return the reactor project whose build directory contains the file or <code>null</code>
+     */
+    public MavenProject findProjectByFile(Path file) {
+        if (file == null || projectsByBuildDirectory.isEmpty())
+            return null;
+        for (Path p = file.toAbsolutePath().normalize(); p != null; p = p.getParent()) {
+            MavenProject project = projectsByBuildDirectory.get(p);
+            if (project != null)
+                return project;
+        }
+        return null;
+    }
+
+    private static Path normalize(String directory) {
+        return Paths.get(directory).toAbsolutePath().normalize();
+    }
+
+    private static String key(String groupId, String artifactId, String version) {
+        return groupId + ":" + artifactId + ":" + version;
+    }
+}
@@ -2,8 +2,10 @@ package org.jetbrains.teamcity;
 
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
+import org.jetbrains.teamcity.agent.StagingMode;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -45,6 +47,13 @@ public class Server {
     private List<SourceDest> extras;
     @Parameter(defaultValue = "false")
     private boolean requireKotlinDsl;
+    /**
+     * How dependencies are placed into the exploded plugin: <code>copy</code>, <code>hardlink</code>,
+     * <code>reflink</code> or <code>symlink</code>. Falls back to copying where links or clones aren't possible.
+     * Overridden by the <code>teamcity.stagingMode</code> property of the goal.
+     */
+    @Parameter(defaultValue = "copy")
+    private String stagingMode = "copy";
 
     public void setDefaultValues(String spec, MavenProject project, File projectBuildOutputDirectory, String pluginVersion) {
         if (Objects.isNull(this.spec))
@@ -64,6 +73,14 @@ public class Server {
         descriptor.adjustDefaults(projectBuildOutputDirectory, "teamcity-plugin.xml", project, pluginVersion);
     }
 
+    public StagingMode toStagingMode() throws MojoExecutionException {
+        try {
+            return StagingMode.of(stagingMode);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
     public boolean isNeedToBuild() {
         return ntb(spec);
     }
@@ -76,6 +93,17 @@ public class Server {
         return ntb(commonSpec);
     }
 
+    public DependencySpec toDependencySpec(String agentSpec) {
+        List<String> serverExclusions = new ArrayList<>(exclusions);
+        if (agentSpec != null && excludeAgent)
+            serverExclusions.add(agentSpec);
+        return new DependencySpec(spec, serverExclusions);
+    }
+
+    public DependencySpec toCommonDependencySpec() {
+        return new DependencySpec(commonSpec, commonExclusions);
+    }
+
     public boolean hasExtras() {
         return extras != null && !extras.isEmpty();
     }
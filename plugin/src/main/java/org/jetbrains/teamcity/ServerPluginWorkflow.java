@@ -87,10 +87,10 @@ public class ServerPluginWorkflow implements ArtifactListProvider {
 
             Path dist = util.getWorkDirectory().resolve("dist");
             String zipName = parameters.getPluginName() + ".zip";
-            Path plugin = util.zipFile(serverPluginRoot, dist, zipName);
-
             String zipPackedName = parameters.getPluginName() + "-packed.zip";
-            Path pluginPacked = util.zipFile(pluginPath, dist, zipPackedName);
+            Pair<Path, Path> zips = util.zipFileWithPacked(serverPluginRoot, dist, zipName, zipPackedName);
+            Path plugin = zips.getLeft();
+            Path pluginPacked = zips.getRight();
 
             AssemblyContext zipAssemblyContext = util.createAssemblyContext("SERVER", dist);
             zipAssemblyContext.getPaths().add(new PathSet(dist).with(new ArtifactPathEntry(zipName, assemblyContext.getName())));
@@ -116,13 +116,11 @@ public class ServerPluginWorkflow implements ArtifactListProvider {
         prepareDescriptor(assemblyContext, serverPluginRoot);
 
         Path serverPath = util.createDir(serverPluginRoot.resolve("server"));
-        List<String> exclusions = new ArrayList<>(parameters.getExclusions());
-        if (agentSpec != null && parameters.isExcludeAgent())
-            exclusions.add(agentSpec);
-        List<Artifact> nodes = util.getDependencyNodeList(rootNode, parameters.getSpec(), exclusions);
+        DependencySpec serverSpec = parameters.toDependencySpec(agentSpec);
+        List<Artifact> nodes = util.getDependencyNodeList(rootNode, serverSpec.getSpec(), serverSpec.getExclusions());
         Map<Boolean, List<Artifact>> dependencies = nodes.stream().collect(Collectors.partitioningBy(it -> "teamcity-agent-plugin".equalsIgnoreCase(it.getClassifier())));
         assemblyContext.getPaths().add(new PathSet(serverPath));
-        Pair<List<ResolvedArtifact>, List<Path>> copyResults = util.copyTransitiveDependenciesInto(parameters.isFailOnMissingDependencies(), assemblyContext, dependencies.get(Boolean.FALSE), serverPath);
+        Pair<List<ResolvedArtifact>, List<Path>> copyResults = util.copyTransitiveDependenciesInto(parameters.isFailOnMissingDependencies(), assemblyContext, dependencies.get(Boolean.FALSE), serverPath, parameters.toStagingMode());
         List<Path> createdDestinations = new ArrayList<>(copyResults.getRight());
         if (!getBuildServerResources().isEmpty()) {
             String classifier = "teamcity-plugin-resources";
@@ -161,7 +159,7 @@ public class ServerPluginWorkflow implements ArtifactListProvider {
             assemblyContext.getPaths().add(new PathSet(serverPluginRoot.resolve("common")));
             Path commonPath = util.createDir(serverPluginRoot.resolve("common"));
             List<Artifact> commonNodes = util.getDependencyNodeList(rootNode, parameters.getCommonSpec(), parameters.getCommonExclusions());
-            Pair<List<ResolvedArtifact>, List<Path>> copyResults1 = util.copyTransitiveDependenciesInto(parameters.isFailOnMissingDependencies(), assemblyContext, commonNodes, commonPath);
+            Pair<List<ResolvedArtifact>, List<Path>> copyResults1 = util.copyTransitiveDependenciesInto(parameters.isFailOnMissingDependencies(), assemblyContext, commonNodes, commonPath, parameters.toStagingMode());
             createdDestinations.addAll(copyResults1.getRight());
         }
         if (parameters.hasExtras()) {
@@ -172,7 +170,7 @@ public class ServerPluginWorkflow implements ArtifactListProvider {
         for (ResultArtifact ra : agentAttachedRuntimeArtifacts) {
             assemblyContext.getPaths().add(new PathSet(agentPluginRoot).with(new ArtifactPathEntry(null, ra.getArtifactContext().getName())));
             Path destination = agentPluginRoot.resolve(ra.getFile().getFileName());
-            Files.copy(ra.getFile(), destination, REPLACE_EXISTING);
+            util.copyFile(ra.getFile(), destination);
             createdDestinations.add(destination);
         }
 
@@ -227,14 +225,14 @@ public class ServerPluginWorkflow implements ArtifactListProvider {
         List<Path> explicitDestinations = new ArrayList<>();
         if (agentPluginDependencies != null && !agentPluginDependencies.isEmpty()) {
             Path agentPath = util.createDir(serverPluginRoot.resolve(AGENT_SUBDIR));
-            Pair<List<ResolvedArtifact>, List<Path>> copyResults = util.copyTransitiveDependenciesInto(parameters.isFailOnMissingDependencies(), assemblyContext, agentPluginDependencies, agentPath);
+            Pair<List<ResolvedArtifact>, List<Path>> copyResults = util.copyTransitiveDependenciesInto(parameters.isFailOnMissingDependencies(), assemblyContext, agentPluginDependencies, agentPath, parameters.toStagingMode());
             explicitDestinations.addAll(copyResults.getRight());
         }
 
         List<Dependency> agentDependencies = pluginDependencies.stream().filter(it -> TEAMCITY_AGENT_PLUGIN_CLASSIFIER.equalsIgnoreCase(it.getClassifier())).collect(Collectors.toList());
         if (!agentDependencies.isEmpty()) {
             Path agentPath = util.createDir(serverPluginRoot.resolve(AGENT_SUBDIR));
-            Pair<List<ResolvedArtifact>, List<Path>> copyResults = util.copyDependenciesInto(assemblyContext, parameters.isFailOnMissingDependencies(), agentDependencies, agentPath);
+            Pair<List<ResolvedArtifact>, List<Path>> copyResults = util.copyDependenciesInto(assemblyContext, parameters.isFailOnMissingDependencies(), agentDependencies, agentPath, parameters.toStagingMode());
             explicitDestinations.addAll(copyResults.getRight());
         }
         return explicitDestinations;
@@ -246,7 +244,7 @@ public class ServerPluginWorkflow implements ArtifactListProvider {
         List<Dependency> bundledDependencies = pluginDependencies.stream().filter(it -> TEAMCITY_TOOL_CLASSIFIER.equalsIgnoreCase(it.getClassifier())).collect(Collectors.toList());
         if (!bundledDependencies.isEmpty()) {
             Path bundledPath = util.createDir(serverPluginRoot.resolve(BUNDLED_SUBDIR));
-            Pair<List<ResolvedArtifact>, List<Path>> copyResults = util.copyDependenciesInto(assemblyContext, parameters.isFailOnMissingDependencies(), bundledDependencies, bundledPath);
+            Pair<List<ResolvedArtifact>, List<Path>> copyResults = util.copyDependenciesInto(assemblyContext, parameters.isFailOnMissingDependencies(), bundledDependencies, bundledPath, parameters.toStagingMode());
             explicitDestinations.addAll(copyResults.getRight());
         }
         return explicitDestinations;
@@ -257,21 +255,7 @@ public class ServerPluginWorkflow implements ArtifactListProvider {
         if (parameters.getKotlinDslDescriptorsPath().exists()) {
             Path kotlinDslPath = util.createDir(serverPluginRoot.resolve("kotlin-dsl"));
             assemblyContext.getPaths().add(new PathSet(kotlinDslPath).with(new DirCopyPathEntry(parameters.getKotlinDslDescriptorsPath().toPath())));
-            try {
-                Files.walk(parameters.getKotlinDslDescriptorsPath().toPath()).forEach(it -> {
-                    try {
-                        if (it.toFile().isFile()) {
-                            Path target = kotlinDslPath.resolve(it.getFileName());
-                            destinations.add(target);
-                            Files.copy(it, target, REPLACE_EXISTING);
-                        }
-                    } catch (IOException e) {
-                        util.getLog().warn("Can't copy " + it + " to " + kotlinDslPath, e);
-                    }
-                });
-            } catch (IOException e) {
-                util.getLog().warn("Can't copy " + parameters.getKotlinDslDescriptorsPath() + " to " + kotlinDslPath);
-            }
+            syncFlattened(parameters.getKotlinDslDescriptorsPath().toPath(), kotlinDslPath, serverPluginRoot, destinations);
         } else if (parameters.isRequireKotlinDsl()) {
             String content = "`requireKotlinDsl` set to true but sources not found in " + parameters.getKotlinDslDescriptorsPath().getPath();
             util.getLog().error(content);
@@ -280,28 +264,34 @@ public class ServerPluginWorkflow implements ArtifactListProvider {
         return destinations;
     }
 
-    private List<Path> assembleUiSchemas(AssemblyContext assemblyContext, Path serverPluginRoot) {
+    private List<Path> assembleUiSchemas(AssemblyContext assemblyContext, Path serverPluginRoot) throws MojoExecutionException {
         List<Path> destinations = new ArrayList<>();
         if (!parameters.getUiSchemasPath().isDirectory()) {
             return destinations;
         }
         Path uiSchemasPath = util.createDir(serverPluginRoot.resolve("ui-schemas"));
         assemblyContext.getPaths().add(new PathSet(uiSchemasPath).with(new DirCopyPathEntry(parameters.getUiSchemasPath().toPath())));
+        syncFlattened(parameters.getUiSchemasPath().toPath(), uiSchemasPath, serverPluginRoot, destinations);
+        return destinations;
+    }
+
+    /**
+     * Syncs all files found in the source directory and its subdirectories directly into the target one, removing the
+     * ones left from earlier builds.
+     */
+    private void syncFlattened(Path source, Path target, Path serverPluginRoot, List<Path> destinations) throws MojoExecutionException {
+        List<Pair<Path, Path>> plan;
         try {
-            Files.walk(parameters.getUiSchemasPath().toPath()).forEach(it -> {
-                try {
-                    if (it.toFile().isFile()) {
-                        Path target = uiSchemasPath.resolve(it.getFileName());
-                        destinations.add(target);
-                        Files.copy(it, target, REPLACE_EXISTING);
-                    }
-                } catch (IOException e) {
-                    util.getLog().warn("Can't copy " + it + " to " + uiSchemasPath, e);
-                }
-            });
+            plan = DirectorySync.flattened(source, target);
         } catch (IOException e) {
-            util.getLog().warn("Can't copy " + parameters.getUiSchemasPath() + " to " + uiSchemasPath);
+            util.getLog().warn("Can't copy " + source + " to " + target);
+            return;
+        }
+        DirectorySync.Result result = util.getDirectorySync().sync(plan, target,
+                it -> !util.shouldRemove(parameters.getIgnoreExtraFilesIn(), serverPluginRoot, it));
+        destinations.addAll(result.getDestinations());
+        for (Pair<Pair<Path, Path>, IOException> failure : result.getFailures()) {
+            util.getLog().warn("Can't copy " + failure.getLeft().getLeft() + " to " + target, failure.getRight());
         }
-        return destinations;
     }
 }
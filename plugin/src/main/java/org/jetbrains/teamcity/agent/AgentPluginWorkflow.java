@@ -76,7 +76,7 @@ public class AgentPluginWorkflow implements ArtifactListProvider {
         Path agentLibPath = util.createDir(parameters.isTool() ?  agentPath : agentPath.resolve("lib"));
         assemblyContext.getPaths().add(new PathSet(agentLibPath));
         List<Artifact> nodes = util.getDependencyNodeList(rootNode, parameters.getSpec(), parameters.getExclusions());
-        Pair<List<ResolvedArtifact>, List<Path>> artifacts = util.copyTransitiveDependenciesInto(parameters.isFailOnMissingDependencies(), assemblyContext, nodes, agentLibPath);
+        Pair<List<ResolvedArtifact>, List<Path>> artifacts = util.copyTransitiveDependenciesInto(parameters.isFailOnMissingDependencies(), assemblyContext, nodes, agentLibPath, parameters.toStagingMode());
         List<Path> destinations = new ArrayList<>(artifacts.getRight());
 
         if (!nodes.isEmpty()) {
@@ -0,0 +1,127 @@
+package org.jetbrains.teamcity.agent;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Thread pool shared by all stages copying files into the work directory.
+ * <p>
+ * Failures of single files don't stop the others, they are collected and returned in the order of the given items,
+ * so that they are reported the same way from build to build whatever the order the files were copied in.
+ */
+public class CopyExecutor {
+    private final int parallelism;
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param parallelism number of copying threads, twice the number of processors if not positive
+     */
+    public CopyExecutor(int parallelism) {
+        this.parallelism = parallelism > 0 ? parallelism : 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    public interface Task<S> {
+        void run(S item) throws IOException;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return failed items with their errors in the order of the items
+     */
+    public <S> List<Pair<S, IOException>> forEach(List<S> items, Task<S> task) throws MojoExecutionException {
+        IOException[] errors = new IOException[items.size()];
+        if (items.size() == 1) {
+            try {
+                task.run(items.get(0));
+            } catch (IOException e) {
+                errors[0] = e;
+            }
+        } else if (!items.isEmpty()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                int index = i;
+                futures.add(submit(() -> {
+                    try {
+                        task.run(items.get(index));
+                    } catch (IOException e) {
+                        errors[index] = e;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                await(future);
+            }
+        }
+        List<Pair<S, IOException>> failures = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            if (errors[i] != null)
+                failures.add(Pair.of(items.get(i), errors[i]));
+        }
+        return failures;
+    }
+
+    /**
+     * Files which copying the items one by one would leave: if several items go to the same destination the last one
+     * wins.
+     *
+     * @return the last item for every destination, in the order of the last items
+     */
+    public static <S> Map<Path, S> lastByDestination(List<S> items, Function<S, Path> destination) {
+        Map<Path, S> result = new LinkedHashMap<>();
+        for (S item : items) {
+            Path path = destination.apply(item);
+            result.remove(path);
+            result.put(path, item);
+        }
+        return result;
+    }
+
+    public synchronized <T> Future<T> submit(Callable<T> task) {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(parallelism, parallelism, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "teamcity-copy");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // idle threads go away between the stages and after the build
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor.submit(task);
+    }
+
+    /**
+     * Stops the threads once the tasks submitted are done, the executor can still be used afterwards.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    static void await(Future<?> future) throws MojoExecutionException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while copying files", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MojoExecutionException)
+                throw (MojoExecutionException) e.getCause();
+            throw new MojoExecutionException("Error while copying files", e.getCause());
+        }
+    }
+}
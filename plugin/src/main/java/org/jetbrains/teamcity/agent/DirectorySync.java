@@ -0,0 +1,213 @@
+package org.jetbrains.teamcity.agent;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Brings destination files in line with their sources the way rsync does: a file is copied only if its size or
+ * modification time differs from the source one, optionally the content is compared before copying, and files left
+ * from earlier builds can be pruned.
+ * <p>
+ * Copies keep the modification time of the source, which is what the next build compares.
+ */
+public class DirectorySync {
+    private final Log log;
+    private final CopyExecutor executor;
+    private final boolean compareContent;
+    private LargeFileCopy largeFileCopy;
+    private StagingPlan stagingPlan;
+
+    /**
+     * @param compareContent compare the content of files that differ only by the modification time instead of
+     *                       copying them
+     */
+    public DirectorySync(Log log, CopyExecutor executor, boolean compareContent) {
+        this.log = log;
+        this.executor = executor;
+        this.compareContent = compareContent;
+    }
+
+    /**
+     * @param largeFileCopy copies files above its threshold, <code>null</code> to copy all files the same way
+     */
+    public void setLargeFileCopy(LargeFileCopy largeFileCopy) {
+        this.largeFileCopy = largeFileCopy;
+    }
+
+    /**
+     * @param stagingPlan plan to add the files to instead of copying them, <code>null</code> to copy them
+     */
+    public void setStagingPlan(StagingPlan stagingPlan) {
+        this.stagingPlan = stagingPlan;
+    }
+
+    /**
+     * @return pairs of source and destination mirroring the source tree in the target directory, directories included
+     */
+    public static List<Pair<Path, Path>> tree(Path source, Path target) throws IOException {
+        try (Stream<Path> files = Files.walk(source)) {
+            return files.sorted().map(it -> Pair.of(it, target.resolve(source.relativize(it).toString()))).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return pairs of source and destination putting all files of the source tree directly into the target directory
+     */
+    public static List<Pair<Path, Path>> flattened(Path source, Path target) throws IOException {
+        try (Stream<Path> files = Files.walk(source)) {
+            return files.sorted().filter(Files::isRegularFile).map(it -> Pair.of(it, target.resolve(it.getFileName()))).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Syncs the destinations of the plan, the last source wins for a destination, see
+     * {@link CopyExecutor#lastByDestination}.
+     *
+     * @param plan      pairs of source and destination, a directory source creates the destination directory
+     * @param pruneRoot directory to remove the files not in the plan from, <code>null</code> not to remove anything
+     * @param keep      files in the prune root to keep even if they aren't in the plan
+     */
+    public Result sync(List<Pair<Path, Path>> plan, Path pruneRoot, Predicate<Path> keep) throws MojoExecutionException {
+        Map<Path, Pair<Path, Path>> sources = CopyExecutor.lastByDestination(plan, Pair::getRight);
+        Result result = new Result(new ArrayList<>(sources.keySet()));
+        Map<Path, IOException> errors = new HashMap<>();
+        List<Path> files = new ArrayList<>();
+        for (Map.Entry<Path, Pair<Path, Path>> it : sources.entrySet()) {
+            if (Files.isDirectory(it.getValue().getLeft())) {
+                try {
+                    Files.createDirectories(it.getKey());
+                } catch (IOException e) {
+                    errors.put(it.getKey(), e);
+                }
+            } else {
+                files.add(it.getKey());
+            }
+        }
+        AtomicInteger copied = new AtomicInteger();
+        for (Pair<Path, IOException> failure : executor.forEach(files, destination -> {
+            if (syncFile(sources.get(destination).getLeft(), destination))
+                copied.incrementAndGet();
+        })) {
+            errors.put(failure.getLeft(), failure.getRight());
+        }
+        for (Map.Entry<Path, Pair<Path, Path>> it : sources.entrySet()) {
+            if (errors.containsKey(it.getKey()))
+                result.failures.add(Pair.of(it.getValue(), errors.get(it.getKey())));
+        }
+        result.copied = copied.get();
+        if (pruneRoot != null && Files.isDirectory(pruneRoot))
+            result.pruned = prune(pruneRoot, sources.keySet(), keep);
+        if (!files.isEmpty() || result.pruned > 0)
+            log.info("Synced " + files.size() + " files" + (pruneRoot != null ? " into " + pruneRoot : "") + ": "
+                    + result.copied + " copied, " + result.pruned + " removed");
+        if (largeFileCopy != null)
+            largeFileCopy.report();
+        return result;
+    }
+
+    private boolean syncFile(Path source, Path destination) throws IOException {
+        if (stagingPlan != null) {
+            if (!Files.isRegularFile(source))
+                throw new NoSuchFileException(source.toString());
+            stagingPlan.add(source, destination);
+            return false;
+        }
+        BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+        BasicFileAttributes destinationAttributes = null;
+        try {
+            destinationAttributes = Files.readAttributes(destination, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            // not synced yet
+        }
+        if (destinationAttributes != null && destinationAttributes.isRegularFile() && destinationAttributes.size() == sourceAttributes.size()) {
+            // setting modification times may lose precision below milliseconds
+            if (destinationAttributes.lastModifiedTime().toMillis() == sourceAttributes.lastModifiedTime().toMillis())
+                return false;
+            if (compareContent && FileUtils.contentEquals(source.toFile(), destination.toFile())) {
+                Files.setLastModifiedTime(destination, sourceAttributes.lastModifiedTime());
+                return false;
+            }
+        }
+        Files.createDirectories(destination.getParent());
+        if (largeFileCopy != null && largeFileCopy.isLarge(sourceAttributes.size()))
+            largeFileCopy.copy(source, destination);
+        else
+            Files.copy(source, destination, REPLACE_EXISTING, COPY_ATTRIBUTES);
+        return true;
+    }
+
+    private int prune(Path root, Set<Path> destinations, Predicate<Path> keep) {
+        List<Path> stale;
+        try (Stream<Path> files = Files.walk(root)) {
+            stale = files.filter(it -> !Files.isDirectory(it, LinkOption.NOFOLLOW_LINKS))
+                    .filter(it -> !destinations.contains(it))
+                    .filter(it -> !keep.test(it))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            log.warn("Can't remove stale files from " + root, e);
+            return 0;
+        }
+        int pruned = 0;
+        for (Path it : stale) {
+            try {
+                Files.delete(it);
+                log.debug("Removed stale file " + it);
+                pruned++;
+            } catch (IOException e) {
+                log.warn("Can't remove stale file " + it + ": " + e);
+            }
+        }
+        return pruned;
+    }
+
+    public static class Result {
+        private final List<Path> destinations;
+        private final List<Pair<Pair<Path, Path>, IOException>> failures = new ArrayList<>();
+        private int copied;
+        private int pruned;
+
+        private Result(List<Path> destinations) {
+            this.destinations = destinations;
+        }
+
+        /**
+         * @return synced destinations in the order of the plan
+         */
+        public List<Path> getDestinations() {
+            return destinations;
+        }
+
+        /**
+         * @return failed pairs of source and destination with their errors in the order of the plan
+         */
+        public List<Pair<Pair<Path, Path>, IOException>> getFailures() {
+            return failures;
+        }
+
+        public int getCopied() {
+            return copied;
+        }
+
+        public int getPruned() {
+            return pruned;
+        }
+    }
+}
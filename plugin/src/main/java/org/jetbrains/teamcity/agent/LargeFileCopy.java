@@ -0,0 +1,109 @@
+package org.jetbrains.teamcity.agent;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies files above the size threshold with {@link FileChannel#transferTo}, which lets the OS move the data without
+ * passing it through Java buffers, and counts the bytes and time spent for them.
+ */
+public class LargeFileCopy {
+    public static final long DEFAULT_THRESHOLD = 16 * 1024 * 1024;
+
+    private final Log log;
+    private final long threshold;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    /**
+     * @param threshold minimal size of a file to copy this way, files of any size are if it is not positive
+     */
+    public LargeFileCopy(Log log, long threshold) {
+        this.log = log;
+        this.threshold = threshold;
+    }
+
+    public boolean isLarge(long size) {
+        return size >= threshold;
+    }
+
+    /**
+     * Replaces the destination with a copy of the source keeping its attributes, as
+     * {@link java.nio.file.StandardCopyOption#COPY_ATTRIBUTES} does for small files. The destination is removed first,
+     * so a link staged before doesn't get written through, and removed if the source can't be read to the end.
+     */
+    public void copy(Path source, Path destination) throws IOException {
+        long start = System.nanoTime();
+        long size;
+        Files.deleteIfExists(destination);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(destination, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            size = in.size();
+            for (long position = 0; position < size; ) {
+                long transferred = in.transferTo(position, size - position, out);
+                // nothing is transferred past the end of the file, which doesn't move if the source has shrunk
+                if (transferred == 0 && in.size() <= position)
+                    throw new EOFException(source + " was truncated to " + in.size() + " bytes while copying " + size + " bytes");
+                position += transferred;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(destination);
+            throw e;
+        }
+        copyAttributes(source, destination);
+        long elapsed = System.nanoTime() - start;
+        files.incrementAndGet();
+        bytes.addAndGet(size);
+        nanos.addAndGet(elapsed);
+        if (log.isDebugEnabled())
+            log.debug("Copied " + source + " to " + destination + ": " + describe(size, elapsed));
+    }
+
+    /**
+     * Copies the times of the source and, where the file systems support them, its POSIX permissions.
+     */
+    private static void copyAttributes(Path source, Path destination) throws IOException {
+        BasicFileAttributes attributes;
+        PosixFileAttributeView posixView = Files.getFileAttributeView(destination, PosixFileAttributeView.class);
+        try {
+            attributes = Files.readAttributes(source, PosixFileAttributes.class);
+        } catch (UnsupportedOperationException e) {
+            attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        }
+        if (posixView != null && attributes instanceof PosixFileAttributes)
+            posixView.setPermissions(((PosixFileAttributes) attributes).permissions());
+        Files.getFileAttributeView(destination, BasicFileAttributeView.class)
+                .setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), attributes.creationTime());
+    }
+
+    /**
+     * Logs the files copied since the previous report.
+     */
+    public void report() {
+        long count = files.getAndSet(0);
+        long size = bytes.getAndSet(0);
+        long elapsed = nanos.getAndSet(0);
+        if (count > 0)
+            log.info("Copied " + count + " large files: " + describe(size, elapsed));
+    }
+
+    private static String describe(long size, long elapsed) {
+        double mb = size / (1024.0 * 1024.0);
+        long millis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+        double seconds = elapsed / 1e9;
+        return String.format("%.1f MB in %d ms (%.1f MB/s)", mb, millis, seconds > 0 ? mb / seconds : 0.0);
+    }
+}
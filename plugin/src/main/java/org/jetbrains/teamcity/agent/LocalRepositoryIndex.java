@@ -0,0 +1,137 @@
+package org.jetbrains.teamcity.agent;
+
+import org.apache.maven.plugin.logging.Log;
+import org.eclipse.aether.artifact.Artifact;
+import org.jetbrains.teamcity.Digests;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistent index of artifacts resolved from the local repository, which lets warm builds find their files without
+ * asking the repository system.
+ * <p>
+ * Every entry keeps the path, size, modification time and SHA-1 of the file. An entry is used while the size and the
+ * modification time of the file are the same, or the SHA-1 is if only the modification time differs. SNAPSHOT
+ * artifacts and files outside the local repository are never indexed.
+ */
+public class LocalRepositoryIndex {
+    private static final String HEADER = "# teamcity-maven-plugin local repository index v1";
+
+    private final Log log;
+    private final Path file;
+    private final Path localRepository;
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private boolean dirty;
+
+    private LocalRepositoryIndex(Log log, Path file, Path localRepository) {
+        this.log = log;
+        this.file = file;
+        this.localRepository = localRepository.toAbsolutePath().normalize();
+    }
+
+    public static LocalRepositoryIndex load(Log log, Path file, Path localRepository) {
+        LocalRepositoryIndex index = new LocalRepositoryIndex(log, file, localRepository);
+        if (!Files.isRegularFile(file))
+            return index;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                log.debug("Local repository index " + file + " has unknown format, ignoring it");
+                return index;
+            }
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] parts = line.split("\t");
+                if (parts.length == 5)
+                    index.entries.put(parts[0], new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can't read local repository index " + file + ", rebuilding it", e);
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    /**
+     * @return the file of the artifact if it is indexed and not changed since, <code>null</code> otherwise
+     */
+    public synchronized File find(Artifact artifact) {
+        String key = artifact.toString();
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        File f = new File(entry.path);
+        if (f.isFile() && f.length() == entry.size) {
+            if (f.lastModified() == entry.lastModified)
+                return f;
+            if (entry.sha1.equals(sha1(f))) {
+                entries.put(key, new Entry(entry.path, entry.size, f.lastModified(), entry.sha1));
+                dirty = true;
+                return f;
+            }
+        }
+        entries.remove(key);
+        dirty = true;
+        return null;
+    }
+
+    public synchronized void record(Artifact unresolved, Artifact resolved) {
+        File f = resolved.getFile();
+        if (resolved.isSnapshot() || f == null || !f.isFile() || !f.toPath().toAbsolutePath().normalize().startsWith(localRepository))
+            return;
+        String sha1 = sha1(f);
+        if (sha1 == null)
+            return;
+        entries.put(unresolved.toString(), new Entry(f.getAbsolutePath(), f.length(), f.lastModified(), sha1));
+        dirty = true;
+    }
+
+    public synchronized void save() {
+        if (!dirty)
+            return;
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    writer.write(e.getKey() + "\t" + entry.path + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.sha1);
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } catch (IOException e) {
+            log.warn("Can't write local repository index " + file, e);
+        }
+    }
+
+    private String sha1(File f) {
+        try {
+            return Digests.sha1(f.toPath());
+        } catch (IOException e) {
+            log.debug("Can't compute SHA-1 of " + f + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final String sha1;
+
+        private Entry(String path, long size, long lastModified, String sha1) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha1 = sha1;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package org.jetbrains.teamcity.agent;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.teamcity.Jdk8Compat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes plugin archives entry by entry straight to the zip file, so the heap used doesn't depend on the size of the
+ * archive.
+ * <p>
+ * Entries are written in the order of their names, directories as <code>dir/</code> entries before their content,
+ * with the modification times of the files. Files matching the stored patterns, which are usually compressed already,
+ * are written without compression, the rest is deflated.
+ * <p>
+ * Every entry is compressed into a scatter buffer of its own, in memory or in a temporary file for large ones, and then
+ * copied into the archive as is. With several threads entries are compressed in parallel ahead of the one being
+ * written, so the archive is the same byte for byte whatever the number of threads. With one thread large entries are
+ * deflated straight into the archive instead, unless the packed archive needs their compressed content too.
+ */
+public class PluginArchiveWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MEMORY_THRESHOLD = 1024 * 1024;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    public static final List<String> DEFAULT_STORED_PATTERNS = Collections.unmodifiableList(Arrays.asList("*.jar", "*.zip", "*.gz", "*.png"));
+
+    private final Log log;
+    private final List<PathMatcher> storedPatterns = new ArrayList<>();
+    private int parallelism = 1;
+    private CopyExecutor executor;
+
+    public PluginArchiveWriter(Log log) {
+        this(log, DEFAULT_STORED_PATTERNS);
+    }
+
+    /**
+     * @param storedPatterns glob patterns of file names to store without compression
+     */
+    public PluginArchiveWriter(Log log, List<String> storedPatterns) {
+        this.log = log;
+        for (String pattern : storedPatterns) {
+            if (pattern != null && !Jdk8Compat.isBlank(pattern))
+                this.storedPatterns.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern.trim()));
+        }
+    }
+
+    public boolean isStored(String name) {
+        Path fileName = Paths.get(name.substring(name.lastIndexOf('/') + 1));
+        for (PathMatcher pattern : storedPatterns) {
+            if (pattern.matches(fileName))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return entries for the content of the directory, walked once
+     */
+    public static List<Entry> entriesOf(Path source) throws IOException {
+        return entriesOf(source, null);
+    }
+
+    /**
+     * @param plan files planned under the directory instead of being written to it, <code>null</code> if none
+     * @return entries for the content of the directory, walked once, and for the planned files
+     */
+    public static List<Entry> entriesOf(Path source, StagingPlan plan) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        try (Stream<Path> files = Files.walk(source)) {
+            files.filter(it -> !it.equals(source)).forEach(it -> {
+                String name = source.relativize(it).toString().replace('\\', '/');
+                entries.put(name, new Entry(Files.isDirectory(it) ? name + "/" : name, it));
+            });
+        }
+        if (plan != null) {
+            for (Map.Entry<String, Path> it : plan.filesUnder(source).entrySet()) {
+                entries.put(it.getKey(), new Entry(it.getKey(), it.getValue()));
+                for (int slash = it.getKey().lastIndexOf('/'); slash > 0; slash = it.getKey().lastIndexOf('/', slash - 1)) {
+                    String directory = it.getKey().substring(0, slash);
+                    entries.putIfAbsent(directory, new Entry(directory + "/", null));
+                }
+            }
+        }
+        // the order of paths, as the directory was walked without a plan
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(it -> source.getFileSystem().getPath(it.getName())));
+        return sorted;
+    }
+
+    /**
+     * @param parallelism number of entries compressed at a time, the number of processors if not positive
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @param executor shared pool to compress entries on, the number of entries compressed at a time is still limited
+     *                 by the parallelism; <code>null</code> to use a pool created for every archive
+     */
+    public void setExecutor(CopyExecutor executor) {
+        this.executor = executor;
+    }
+
+    public void write(List<Entry> entries, Path zipPath) throws IOException {
+        write(entries, zipPath, null, null);
+    }
+
+    /**
+     * Writes the archive and, in the same pass, the packed one with the same entries moved into the root directory.
+     * Entries of the packed archive are copied from the compressed ones as is.
+     *
+     * @param packedZipPath packed archive to write, <code>null</code> if none
+     * @param packedRoot    directory entry all entries of the packed archive are put into
+     */
+    public void write(List<Entry> entries, Path zipPath, Path packedZipPath, Entry packedRoot) throws IOException {
+        Files.deleteIfExists(zipPath);
+        if (packedZipPath != null)
+            Files.deleteIfExists(packedZipPath);
+        Path scatterDirectory = zipPath.toAbsolutePath().getParent();
+        try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(zipPath.toFile());
+             ZipArchiveOutputStream packed = packedZipPath != null ? new ZipArchiveOutputStream(packedZipPath.toFile()) : null) {
+            Sink sink = new Sink(out, packed, packedRoot != null ? packedRoot.getName() : "");
+            if (packed != null)
+                compress(packedRoot, scatterDirectory, false).writeTo(new Sink(packed, null, ""));
+            if (parallelism > 1 && entries.size() > 1)
+                writeParallel(entries, sink, scatterDirectory);
+            else
+                writeSerial(entries, sink, scatterDirectory);
+        }
+    }
+
+    private void writeSerial(List<Entry> entries, Sink out, Path scatterDirectory) throws IOException {
+        for (Entry entry : entries) {
+            Compressed compressed;
+            try {
+                compressed = compress(entry, scatterDirectory, out.packed == null);
+            } catch (IOException e) {
+                log.warn("Can't zip file " + entry.getSource() + " to " + entry.getName(), e);
+                continue;
+            }
+            compressed.writeTo(out);
+        }
+    }
+
+    /**
+     * Compresses the entries ahead of the one being written, a few per thread, and merges them into the archive in
+     * their order.
+     */
+    private void writeParallel(List<Entry> entries, Sink out, Path scatterDirectory) throws IOException {
+        CopyExecutor executor = this.executor != null ? this.executor : new CopyExecutor(parallelism);
+        Deque<Future<Compressed>> pending = new ArrayDeque<>();
+        try {
+            int submitted = 0;
+            for (Entry entry : entries) {
+                for (; submitted < entries.size() && pending.size() < 2 * parallelism; submitted++) {
+                    Entry next = entries.get(submitted);
+                    pending.add(executor.submit(() -> compress(next, scatterDirectory, false)));
+                }
+                Compressed compressed;
+                try {
+                    compressed = pending.remove().get();
+                } catch (ExecutionException e) {
+                    // only a file which can't be read is skipped, as in the serial mode
+                    if (e.getCause() instanceof IOException) {
+                        log.warn("Can't zip file " + entry.getSource() + " to " + entry.getName(), e.getCause());
+                        continue;
+                    }
+                    if (e.getCause() instanceof Error)
+                        throw (Error) e.getCause();
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new IOException("Can't zip file " + entry.getSource() + " to " + entry.getName(), e.getCause());
+                }
+                compressed.writeTo(out);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while zipping");
+        } finally {
+            for (Future<Compressed> future : pending) {
+                try {
+                    future.get().release();
+                } catch (InterruptedException | ExecutionException e) {
+                    // nothing to release
+                }
+            }
+            if (executor != this.executor)
+                executor.shutdown();
+        }
+    }
+
+    /**
+     * Compresses the entry, small entries in memory and others into a temporary file next to the archive.
+     *
+     * @param streamed <code>true</code> to leave large entries to be deflated while they are written
+     */
+    private Compressed compress(Entry entry, Path scatterDirectory, boolean streamed) throws IOException {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.getName());
+        if (entry.getSource() != null)
+            zipEntry.setTime(Files.getLastModifiedTime(entry.getSource()).toMillis());
+        if (entry.isDirectory()) {
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(0);
+            zipEntry.setCompressedSize(0);
+            zipEntry.setCrc(0);
+            return new Compressed(zipEntry, null, null, null);
+        }
+        byte[] buffer = BUFFER.get();
+        if (isStored(entry.getName())) {
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(Files.size(entry.getSource()));
+            zipEntry.setCompressedSize(zipEntry.getSize());
+            zipEntry.setCrc(crc(entry.getSource(), buffer));
+            return new Compressed(zipEntry, null, entry.getSource(), null);
+        }
+        if (streamed && Files.size(entry.getSource()) > MEMORY_THRESHOLD) {
+            zipEntry.setMethod(ZipEntry.DEFLATED);
+            zipEntry.setSize(Files.size(entry.getSource()));
+            // opened now, so a file which can't be read is skipped before the entry is started
+            return new Compressed(zipEntry, null, null, Files.newInputStream(entry.getSource()));
+        }
+        CRC32 crc = new CRC32();
+        long size = 0;
+        DeferredFileOutputStream scatter = DeferredFileOutputStream.builder()
+                .setThreshold(MEMORY_THRESHOLD)
+                .setPrefix("zip-entry")
+                .setSuffix(".tmp")
+                .setDirectory(scatterDirectory.toFile())
+                .get();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (InputStream in = Files.newInputStream(entry.getSource());
+             DeflaterOutputStream deflated = new DeflaterOutputStream(scatter, deflater, BUFFER_SIZE)) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                crc.update(buffer, 0, read);
+                deflated.write(buffer, 0, read);
+                size += read;
+            }
+        } catch (IOException e) {
+            new Compressed(zipEntry, scatter, null, null).release();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        zipEntry.setMethod(ZipEntry.DEFLATED);
+        zipEntry.setSize(size);
+        zipEntry.setCompressedSize(scatter.getByteCount());
+        zipEntry.setCrc(crc.getValue());
+        return new Compressed(zipEntry, scatter, null, null);
+    }
+
+    private static long crc(Path file, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Entry with its final header and compressed content, in a scatter buffer or, for stored entries, in the file; or
+     * an entry to deflate from the opened file while it is written.
+     */
+    private static class Compressed {
+        private final ZipArchiveEntry entry;
+        private final DeferredFileOutputStream scatter;
+        private final Path stored;
+        private final InputStream deflated;
+
+        private Compressed(ZipArchiveEntry entry, DeferredFileOutputStream scatter, Path stored, InputStream deflated) {
+            this.entry = entry;
+            this.scatter = scatter;
+            this.stored = stored;
+            this.deflated = deflated;
+        }
+
+        private void writeTo(Sink sink) throws IOException {
+            try {
+                if (deflated != null) {
+                    sink.out.putArchiveEntry(entry);
+                    byte[] buffer = BUFFER.get();
+                    for (int read = deflated.read(buffer); read >= 0; read = deflated.read(buffer)) {
+                        sink.out.write(buffer, 0, read);
+                    }
+                    sink.out.closeArchiveEntry();
+                    return;
+                }
+                try (InputStream raw = openRaw()) {
+                    sink.out.addRawArchiveEntry(entry, raw);
+                }
+                if (sink.packed != null) {
+                    try (InputStream raw = openRaw()) {
+                        sink.packed.addRawArchiveEntry(renamed(sink.prefix + entry.getName()), raw);
+                    }
+                }
+            } finally {
+                release();
+            }
+        }
+
+        private InputStream openRaw() throws IOException {
+            return scatter != null ? scatter.toInputStream() : stored != null ? Files.newInputStream(stored) : new ByteArrayInputStream(new byte[0]);
+        }
+
+        private ZipArchiveEntry renamed(String name) {
+            ZipArchiveEntry renamed = new ZipArchiveEntry(name);
+            renamed.setMethod(entry.getMethod());
+            renamed.setSize(entry.getSize());
+            renamed.setCompressedSize(entry.getCompressedSize());
+            renamed.setCrc(entry.getCrc());
+            if (entry.getTime() != -1)
+                renamed.setTime(entry.getTime());
+            return renamed;
+        }
+
+        private void release() {
+            if (scatter != null && !scatter.isInMemory())
+                FileUtils.deleteQuietly(scatter.getFile());
+            IOUtils.closeQuietly(deflated);
+        }
+    }
+
+    private static class Sink {
+        private final ZipArchiveOutputStream out;
+        private final ZipArchiveOutputStream packed;
+        private final String prefix;
+
+        private Sink(ZipArchiveOutputStream out, ZipArchiveOutputStream packed, String prefix) {
+            this.out = out;
+            this.packed = packed;
+            this.prefix = prefix;
+        }
+    }
+
+    public static class Entry {
+        private final String name;
+        private final Path source;
+
+        /**
+         * @param name   name in the archive, ending with <code>/</code> for directories
+         * @param source file to put into the archive, the directory or <code>null</code> for directories
+         */
+        public Entry(String name, Path source) {
+            this.name = name;
+            this.source = source;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Path getSource() {
+            return source;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.jetbrains.teamcity.agent;
+
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.SessionData;
+import org.eclipse.aether.artifact.Artifact;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Artifacts resolved during the current Maven session together with the data derived from their files, so that
+ * dependencies shared by the agent, server and common parts, and by plugin modules of a reactor, are resolved and
+ * inspected once.
+ * <p>
+ * Entries are keyed by Aether coordinates and dropped when the size or modification time of the file changes.
+ */
+public class ResolutionCache {
+    private static final Object SESSION_KEY = ResolutionCache.class.getName();
+
+    private final Map<String, Entry> artifacts = new ConcurrentHashMap<>();
+    private final Map<String, Entry> fileNames = new ConcurrentHashMap<>();
+
+    /**
+     * @return the cache of the session or a new one not shared with anyone if there is no session
+     */
+    public static ResolutionCache of(RepositorySystemSession repositorySession) {
+        if (repositorySession == null)
+            return new ResolutionCache();
+        SessionData data = repositorySession.getData();
+        ResolutionCache cache = (ResolutionCache) data.get(SESSION_KEY);
+        while (cache == null) {
+            data.set(SESSION_KEY, null, new ResolutionCache());
+            cache = (ResolutionCache) data.get(SESSION_KEY);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the artifact resolved earlier with the same coordinates or <code>null</code>
+     */
+    public Artifact get(Artifact unresolved) {
+        String key = unresolved.toString();
+        Entry entry = artifacts.get(key);
+        if (entry == null)
+            return null;
+        if (!entry.isUpToDate()) {
+            artifacts.remove(key, entry);
+            return null;
+        }
+        return (Artifact) entry.value;
+    }
+
+    public void put(Artifact unresolved, Artifact resolved) {
+        if (resolved.getFile() != null)
+            artifacts.put(unresolved.toString(), new Entry(resolved.getFile(), resolved));
+    }
+
+    /**
+     * @return the name of the resolved artifact file in the plugin, computed once per file state
+     */
+    public String getFileName(Artifact resolved, Function<Artifact, String> fileName) {
+        File file = resolved.getFile();
+        if (file == null)
+            return fileName.apply(resolved);
+        String key = resolved + "|" + file.getAbsolutePath();
+        Entry entry = fileNames.get(key);
+        if (entry == null || !entry.isUpToDate()) {
+            entry = new Entry(file, fileName.apply(resolved));
+            fileNames.put(key, entry);
+        }
+        return (String) entry.value;
+    }
+
+    private static class Entry {
+        private final File file;
+        private final long length;
+        private final long lastModified;
+        private final Object value;
+
+        private Entry(File file, Object value) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+            this.value = value;
+        }
+
+        private boolean isUpToDate() {
+            return file.exists() && file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+}
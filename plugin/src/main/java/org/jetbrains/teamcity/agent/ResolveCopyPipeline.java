@@ -0,0 +1,132 @@
+package org.jetbrains.teamcity.agent;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Resolves artifacts in chunks on the calling thread and hands every resolved one to copy workers of the shared
+ * {@link CopyExecutor} through a bounded queue, so copying starts while the rest is still being resolved.
+ * <p>
+ * Results are returned in the order of the given artifacts regardless of the order they were processed in.
+ * Destinations are known only once artifacts are resolved, so a copy is skipped if a later artifact has already been
+ * copied to the same destination, which leaves the files of {@link CopyExecutor#lastByDestination}.
+ */
+public class ResolveCopyPipeline<T> {
+    private static final int CHUNK_SIZE = 8;
+    private static final int QUEUE_CAPACITY = 32;
+
+    private final CopyExecutor executor;
+
+    public ResolveCopyPipeline(CopyExecutor executor) {
+        this.executor = executor;
+    }
+
+    public interface Resolver {
+        /**
+         * @return resolved artifacts in the order of the given ones, <code>null</code> for the ones to skip
+         */
+        List<org.eclipse.aether.artifact.Artifact> resolve(List<Artifact> artifacts) throws MojoExecutionException;
+    }
+
+    public interface Stage<T> {
+        T process(int index, org.eclipse.aether.artifact.Artifact source) throws Exception;
+    }
+
+    public interface Copy<T> {
+        void copy(int index, T result) throws Exception;
+    }
+
+    /**
+     * @return results of the stage in the order of the artifacts, <code>null</code> for skipped artifacts
+     */
+    public List<T> run(List<Artifact> artifacts, Resolver resolver, Stage<T> stage) throws MojoExecutionException {
+        return run(artifacts, resolver, stage, null, null);
+    }
+
+    /**
+     * @param destination destination of a result of the stage, <code>null</code> if there is nothing to copy
+     * @param copy copies a result of the stage to its destination, one at a time for every destination
+     * @return results of the stage in the order of the artifacts, <code>null</code> for skipped artifacts
+     */
+    public List<T> run(List<Artifact> artifacts, Resolver resolver, Stage<T> stage, Function<T, Path> destination, Copy<T> copy) throws MojoExecutionException {
+        // index of the last artifact copied to a destination, also locked while copying there
+        Map<Path, int[]> copied = new ConcurrentHashMap<>();
+        Object[] results = new Object[artifacts.size()];
+        Exception[] errors = new Exception[artifacts.size()];
+        if (artifacts.isEmpty())
+            return new ArrayList<>();
+        BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Object[] end = new Object[0];
+        int workers = Math.min(executor.getParallelism(), artifacts.size());
+        List<Future<?>> consumers = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            consumers.add(executor.submit(() -> {
+                // keeps draining the queue after a failure, so the producer is never blocked
+                for (Object[] item = queue.take(); item != end; item = queue.take()) {
+                    int index = (Integer) item[0];
+                    try {
+                        T result = stage.process(index, (org.eclipse.aether.artifact.Artifact) item[1]);
+                        results[index] = result;
+                        if (destination != null)
+                            copy(copy, copied.computeIfAbsent(destination.apply(result), it -> new int[]{-1}), index, result);
+                    } catch (Exception e) {
+                        errors[index] = e;
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            for (int from = 0; from < artifacts.size(); from += CHUNK_SIZE) {
+                List<Artifact> chunk = artifacts.subList(from, Math.min(from + CHUNK_SIZE, artifacts.size()));
+                List<org.eclipse.aether.artifact.Artifact> sources = resolver.resolve(chunk);
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (sources.get(i) != null)
+                        put(queue, new Object[]{from + i, sources.get(i)});
+                }
+            }
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                put(queue, end);
+            }
+            for (Future<?> consumer : consumers) {
+                CopyExecutor.await(consumer);
+            }
+        }
+        for (Exception error : errors) {
+            if (error instanceof MojoExecutionException)
+                throw (MojoExecutionException) error;
+            if (error != null)
+                throw new MojoExecutionException("Error while copying dependencies", error);
+        }
+        @SuppressWarnings("unchecked")
+        List<T> list = (List<T>) Arrays.asList(results);
+        return new ArrayList<>(list);
+    }
+
+    private static <T> void copy(Copy<T> copy, int[] last, int index, T result) throws Exception {
+        synchronized (last) {
+            if (last[0] < index) {
+                last[0] = index;
+                copy.copy(index, result);
+            }
+        }
+    }
+
+    private static void put(BlockingQueue<Object[]> queue, Object[] item) throws MojoExecutionException {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while copying dependencies", e);
+        }
+    }
+}
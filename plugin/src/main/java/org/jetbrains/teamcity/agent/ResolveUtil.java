@@ -6,14 +6,18 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.jetbrains.teamcity.ReactorProjects;
 import org.eclipse.aether.RepositorySystemSession;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.repository.WorkspaceRepository;
 import org.eclipse.aether.resolution.ArtifactRequest;
 import org.eclipse.aether.resolution.ArtifactResolutionException;
 import org.eclipse.aether.resolution.ArtifactResult;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 @Data
@@ -25,38 +29,151 @@ public class ResolveUtil {
     private final List<RemoteRepository> repositories;
     @Parameter(defaultValue = "${repositorySystemSession}")
     private final RepositorySystemSession repoSession;
+    private ResolutionCache resolutionCache;
+    /**
+     * Projects of the reactor whose built files are used without resolution, if set.
+     */
+    private ReactorProjects reactorProjects;
+    /**
+     * Persistent index consulted before the repository system, if set.
+     */
+    private LocalRepositoryIndex localRepositoryIndex;
 
 
     public org.eclipse.aether.artifact.Artifact resolve(Artifact unresolvedArtifact) throws MojoExecutionException {
+        return resolveAll(Collections.singletonList(unresolvedArtifact), true).get(0);
+    }
+
+    /**
+     * Resolves all the artifacts in a single request, so the repository system can fetch them in parallel.
+     *
+     * @param failOnMissingDependencies whether to fail if some of the artifacts can't be resolved, otherwise they are
+     *                                  reported as a single warning
+     * @return resolved artifacts in the order of the given ones, <code>null</code> for the ones not resolved
+     */
+    public List<org.eclipse.aether.artifact.Artifact> resolveAll(List<Artifact> unresolvedArtifacts, boolean failOnMissingDependencies) throws MojoExecutionException {
+        MissingArtifacts missing = new MissingArtifacts();
+        List<org.eclipse.aether.artifact.Artifact> resolved = resolveAvailable(unresolvedArtifacts, missing);
+        saveLocalRepositoryIndex();
+        missing.report(unresolvedArtifacts.size(), failOnMissingDependencies);
+        return resolved;
+    }
+
+    /**
+     * Resolves all the artifacts in a single request, adding the ones which can't be resolved to <code>missing</code>
+     * instead of reporting them.
+     *
+     * @return resolved artifacts in the order of the given ones, <code>null</code> for the ones not resolved
+     */
+    public List<org.eclipse.aether.artifact.Artifact> resolveAvailable(List<Artifact> unresolvedArtifacts, MissingArtifacts missing) {
         // Here, it becomes messy. We ask Maven to resolve the artifact's location.
         // It may imply downloading it from a remote repository,
         // searching the local repository or looking into the reactor's cache.
 
         // To achieve this, we must use Aether
         // (the dependency mechanism behind Maven).
-        String artifactId = unresolvedArtifact.getArtifactId();
-        org.eclipse.aether.artifact.Artifact aetherArtifact = new DefaultArtifact(
-                unresolvedArtifact.getGroupId(),
-                unresolvedArtifact.getArtifactId(),
-                unresolvedArtifact.getClassifier(),
-                unresolvedArtifact.getType(),
-                unresolvedArtifact.getVersion());
-
-        ArtifactRequest req = new ArtifactRequest().setRepositories(this.repositories).setArtifact(aetherArtifact);
-        ArtifactResult resolutionResult;
-        try {
-            resolutionResult = this.repoSystem.resolveArtifact(this.repoSession, req);
-
-        } catch (ArtifactResolutionException e) {
-            throw new MojoExecutionException("Artifact " + artifactId + " could not be resolved.", e);
+        // Reactor artifacts that are already built are taken straight from their projects.
+        List<ArtifactRequest> requests = new ArrayList<>(unresolvedArtifacts.size());
+        org.eclipse.aether.artifact.Artifact[] cached = new org.eclipse.aether.artifact.Artifact[unresolvedArtifacts.size()];
+        for (Artifact unresolvedArtifact : unresolvedArtifacts) {
+            org.eclipse.aether.artifact.Artifact aetherArtifact = new DefaultArtifact(
+                    unresolvedArtifact.getGroupId(),
+                    unresolvedArtifact.getArtifactId(),
+                    unresolvedArtifact.getClassifier(),
+                    unresolvedArtifact.getType(),
+                    unresolvedArtifact.getVersion());
+            File reactorFile = reactorProjects != null ? reactorProjects.findBuiltFile(unresolvedArtifact) : null;
+            if (reactorFile != null)
+                cached[requests.size()] = aetherArtifact.setFile(reactorFile);
+            requests.add(new ArtifactRequest().setRepositories(this.repositories).setArtifact(aetherArtifact));
+        }
+        ResolutionCache cache = getResolutionCache();
+        List<ArtifactRequest> uncached = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            if (cached[i] == null)
+                cached[i] = cache.get(requests.get(i).getArtifact());
+            if (cached[i] == null && localRepositoryIndex != null) {
+                File indexed = localRepositoryIndex.find(requests.get(i).getArtifact());
+                if (indexed != null) {
+                    cached[i] = requests.get(i).getArtifact().setFile(indexed);
+                    cache.put(requests.get(i).getArtifact(), cached[i]);
+                }
+            }
+            if (cached[i] == null)
+                uncached.add(requests.get(i));
         }
 
-        // The file should exists, but we never know.
-        File file = resolutionResult.getArtifact().getFile();
-        if (file == null || !file.exists()) {
-            getLog().warn("Artifact " + artifactId + " has no attached file (" + file + "). Its content will not be copied in the target model directory.");
+        List<ArtifactResult> results = new ArrayList<>();
+        if (!uncached.isEmpty()) {
+            try {
+                results = this.repoSystem.resolveArtifacts(this.repoSession, uncached);
+            } catch (ArtifactResolutionException e) {
+                results = e.getResults();
+            }
         }
-        return resolutionResult.getArtifact();
+
+        List<org.eclipse.aether.artifact.Artifact> resolved = new ArrayList<>(requests.size());
+        int next = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            if (cached[i] != null) {
+                resolved.add(cached[i]);
+                continue;
+            }
+            ArtifactResult result = results != null && next < results.size() ? results.get(next) : null;
+            next++;
+            if (result == null || !result.isResolved()) {
+                missing.add(requests.get(i).getArtifact(), result == null || result.getExceptions().isEmpty() ? null : result.getExceptions().get(0));
+                resolved.add(null);
+                continue;
+            }
+            // The file should exists, but we never know.
+            File file = result.getArtifact().getFile();
+            if (file == null || !file.exists()) {
+                getLog().warn("Artifact " + result.getArtifact().getArtifactId() + " has no attached file (" + file + "). Its content will not be copied in the target model directory.");
+            }
+            // reactor artifacts may change their files during the session (e.g. classes directory -> packaged jar)
+            if (!(result.getRepository() instanceof WorkspaceRepository)) {
+                cache.put(requests.get(i).getArtifact(), result.getArtifact());
+                if (localRepositoryIndex != null)
+                    localRepositoryIndex.record(requests.get(i).getArtifact(), result.getArtifact());
+            }
+            resolved.add(result.getArtifact());
+        }
+        return resolved;
+    }
+
+    /**
+     * Artifacts which could not be resolved, collected to be reported at once.
+     */
+    public class MissingArtifacts {
+        private final List<String> messages = new ArrayList<>();
+        private Exception cause;
+
+        public synchronized void add(org.eclipse.aether.artifact.Artifact artifact, Exception exception) {
+            messages.add(exception == null ? artifact.toString() : artifact + ": " + exception.getMessage());
+            if (cause == null)
+                cause = exception;
+        }
+
+        public synchronized void report(int total, boolean failOnMissingDependencies) throws MojoExecutionException {
+            if (messages.isEmpty())
+                return;
+            String report = messages.size() + " of " + total + " artifacts could not be resolved:\n  " + String.join("\n  ", messages);
+            if (failOnMissingDependencies)
+                throw new MojoExecutionException(report, cause);
+            getLog().warn(report + "\nThey will not be copied in the target model directory.");
+        }
+    }
+
+    public void saveLocalRepositoryIndex() {
+        if (localRepositoryIndex != null)
+            localRepositoryIndex.save();
+    }
+
+    public ResolutionCache getResolutionCache() {
+        if (resolutionCache == null)
+            resolutionCache = ResolutionCache.of(repoSession);
+        return resolutionCache;
     }
 
 }
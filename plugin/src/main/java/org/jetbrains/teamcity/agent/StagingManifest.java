@@ -0,0 +1,267 @@
+package org.jetbrains.teamcity.agent;
+
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.teamcity.Digests;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Fingerprints of the files staged into the work directory, kept between builds so a file is copied again only if
+ * its content has changed.
+ * <p>
+ * For every staged file the manifest records its source, the size and modification time of the source and of the
+ * staged copy, and the SHA-1 of the content. The file is up-to-date while neither of them has changed; if only the
+ * modification time of the source differs the SHA-1 decides.
+ * <p>
+ * Files copied by {@link LargeFileCopy} aren't read by Java code, so their SHA-1 isn't known and they are copied again
+ * whenever the source changes.
+ */
+public class StagingManifest {
+    private static final String HEADER = "# teamcity-maven-plugin staging manifest v1";
+    private static final String UNKNOWN_SHA1 = "-";
+
+    private final Log log;
+    private final Path file;
+    private final Path root;
+    private final Map<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private volatile boolean dirty;
+    private LargeFileCopy largeFileCopy;
+
+    private StagingManifest(Log log, Path file, Path root) {
+        this.log = log;
+        this.file = file;
+        this.root = root;
+    }
+
+    /**
+     * @param root directory the staged files are kept relative to
+     */
+    public static StagingManifest load(Log log, Path file, Path root) {
+        StagingManifest manifest = new StagingManifest(log, file, root);
+        if (!Files.isRegularFile(file))
+            return manifest;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                log.debug("Staging manifest " + file + " has unknown format, ignoring it");
+                return manifest;
+            }
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] parts = line.split("\t");
+                if (parts.length == 7)
+                    manifest.entries.put(parts[0], new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                            Long.parseLong(parts[4]), Long.parseLong(parts[5]), parts[6]));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can't read staging manifest " + file + ", all files will be staged again", e);
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    public void setLargeFileCopy(LargeFileCopy largeFileCopy) {
+        this.largeFileCopy = largeFileCopy;
+    }
+
+    /**
+     * Places the source to the destination the given way unless the destination is already up-to-date. Falls back to
+     * copying if the file can't be linked or cloned, e.g. when the destination is on another filesystem.
+     *
+     * @return <code>true</code> if the file was staged
+     */
+    public boolean stage(File source, Path destination, StagingMode mode) throws IOException {
+        if (mode == StagingMode.HARDLINK || mode == StagingMode.SYMLINK) {
+            if (isLinked(source, destination, mode))
+                return false;
+            if (link(source, destination, mode)) {
+                entries.remove(key(destination));
+                dirty = true;
+                return true;
+            }
+        }
+        if (!isLinked(source, destination, StagingMode.HARDLINK) && !Files.isSymbolicLink(destination) && isUpToDate(source, destination)) {
+            return false;
+        }
+        if (mode == StagingMode.REFLINK && reflink(source, destination)) {
+            record(source, destination, isLarge(source) ? UNKNOWN_SHA1 : sha1(source));
+            return true;
+        }
+        if (isLarge(source)) {
+            largeFileCopy.copy(source.toPath(), destination);
+            record(source, destination, UNKNOWN_SHA1);
+            return true;
+        }
+        String sha1 = copy(source, destination);
+        record(source, destination, sha1);
+        return true;
+    }
+
+    private static boolean isLinked(File source, Path destination, StagingMode mode) {
+        try {
+            if (mode == StagingMode.SYMLINK)
+                return Files.isSymbolicLink(destination) && Files.readSymbolicLink(destination).equals(source.toPath().toAbsolutePath());
+            return Files.isRegularFile(destination, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(source.toPath(), destination);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the link next to the destination and moves it over, so a copy staged before is kept if the file can't
+     * be linked.
+     */
+    private boolean link(File source, Path destination, StagingMode mode) {
+        Path link = destination.resolveSibling(destination.getFileName() + ".link");
+        try {
+            Files.deleteIfExists(link);
+            if (mode == StagingMode.SYMLINK)
+                Files.createSymbolicLink(link, source.toPath().toAbsolutePath());
+            else
+                Files.createLink(link, source.toPath());
+            Files.move(link, destination, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Can't " + mode.name().toLowerCase() + " " + source + " to " + destination + ", copying it: " + e);
+            try {
+                Files.deleteIfExists(link);
+            } catch (IOException ignored) {
+                // nothing was linked
+            }
+            return false;
+        }
+    }
+
+    private boolean reflink(File source, Path destination) {
+        try {
+            Files.deleteIfExists(destination);
+            Process process = new ProcessBuilder("cp", "--reflink=always", source.getAbsolutePath(), destination.toAbsolutePath().toString())
+                    .redirectErrorStream(true)
+                    .start();
+            try (InputStream output = process.getInputStream()) {
+                while (output.read() >= 0) {
+                    // cp only prints errors
+                }
+            }
+            if (process.waitFor() == 0)
+                return true;
+            log.debug("Can't reflink " + source + " to " + destination + ", copying it");
+        } catch (IOException e) {
+            log.debug("Can't reflink " + source + " to " + destination + ", copying it: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private boolean isLarge(File source) {
+        return largeFileCopy != null && largeFileCopy.isLarge(source.length());
+    }
+
+    public boolean isUpToDate(File source, Path destination) {
+        File dest = destination.toFile();
+        if (!dest.isFile() || !source.isFile() || dest.length() != source.length())
+            return false;
+        String key = key(destination);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.source.equals(source.getAbsolutePath()) && entry.destinationSize == dest.length() && entry.destinationLastModified == dest.lastModified()) {
+            if (entry.sourceSize == source.length() && entry.sourceLastModified == source.lastModified())
+                return true;
+            // e.g. a reactor jar rebuilt with the same content
+            if (!entry.sha1.equals(UNKNOWN_SHA1) && entry.sha1.equals(sha1(source))) {
+                entries.put(key, new Entry(entry.source, source.length(), source.lastModified(), entry.destinationSize, entry.destinationLastModified, entry.sha1));
+                dirty = true;
+                return true;
+            }
+            return false;
+        }
+        // staged by an earlier version or by another source, compare the content
+        String sha1 = sha1(source);
+        if (sha1 != null && sha1.equals(sha1(dest))) {
+            record(source, destination, sha1);
+            return true;
+        }
+        return false;
+    }
+
+    private void record(File source, Path destination, String sha1) {
+        File dest = destination.toFile();
+        entries.put(key(destination), new Entry(source.getAbsolutePath(), source.length(), source.lastModified(), dest.length(), dest.lastModified(), sha1));
+        dirty = true;
+    }
+
+    public synchronized void save() {
+        if (!dirty)
+            return;
+        entries.keySet().removeIf(it -> !Files.isRegularFile(root.resolve(it)));
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    writer.write(e.getKey() + "\t" + entry.source + "\t" + entry.sourceSize + "\t" + entry.sourceLastModified + "\t"
+                            + entry.destinationSize + "\t" + entry.destinationLastModified + "\t" + entry.sha1);
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } catch (IOException e) {
+            log.warn("Can't write staging manifest " + file, e);
+        }
+    }
+
+    private String key(Path destination) {
+        Path path = destination.toAbsolutePath().normalize();
+        Path base = root.toAbsolutePath().normalize();
+        return (path.startsWith(base) ? base.relativize(path) : path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Copies the file computing the SHA-1 of its content on the way.
+     */
+    private static String copy(File source, Path destination) throws IOException {
+        MessageDigest md = Digests.newDigest(Digests.SHA_1);
+        try (InputStream in = new DigestInputStream(Files.newInputStream(source.toPath()), md)) {
+            Files.copy(in, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return Digests.toHex(md.digest());
+    }
+
+    private String sha1(File f) {
+        try {
+            return Digests.sha1(f.toPath());
+        } catch (IOException e) {
+            log.debug("Can't compute SHA-1 of " + f + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final String source;
+        private final long sourceSize;
+        private final long sourceLastModified;
+        private final long destinationSize;
+        private final long destinationLastModified;
+        private final String sha1;
+
+        private Entry(String source, long sourceSize, long sourceLastModified, long destinationSize, long destinationLastModified, String sha1) {
+            this.source = source;
+            this.sourceSize = sourceSize;
+            this.sourceLastModified = sourceLastModified;
+            this.destinationSize = destinationSize;
+            this.destinationLastModified = destinationLastModified;
+            this.sha1 = sha1;
+        }
+    }
+}
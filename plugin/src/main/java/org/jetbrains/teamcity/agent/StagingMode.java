@@ -0,0 +1,35 @@
+package org.jetbrains.teamcity.agent;
+
+import java.util.Locale;
+
+/**
+ * How dependency files are placed into the exploded plugin layouts in the work directory.
+ */
+public enum StagingMode {
+    /**
+     * Physical copy of the file.
+     */
+    COPY,
+    /**
+     * Hard link to the file, the same file on disk with no extra space used.
+     */
+    HARDLINK,
+    /**
+     * Copy-on-write clone of the file (<code>cp --reflink=always</code>), on filesystems which support it.
+     */
+    REFLINK,
+    /**
+     * Symbolic link to the file.
+     */
+    SYMLINK;
+
+    public static StagingMode of(String mode) {
+        if (mode == null || mode.trim().isEmpty())
+            return COPY;
+        try {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown staging mode '" + mode + "', expected one of copy, hardlink, reflink, symlink");
+        }
+    }
+}
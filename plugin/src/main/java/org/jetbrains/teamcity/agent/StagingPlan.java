@@ -0,0 +1,35 @@
+package org.jetbrains.teamcity.agent;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files of the plugin layout that are not written to the work directory in the direct archive mode, together with
+ * the sources they are taken from when the plugin is archived.
+ */
+public class StagingPlan {
+    private final Map<Path, Path> sources = new ConcurrentHashMap<>();
+
+    public void add(Path source, Path destination) {
+        sources.put(normalize(destination), source);
+    }
+
+    /**
+     * @return sources of the planned files under the directory by their paths relative to it
+     */
+    public Map<String, Path> filesUnder(Path root) {
+        Path base = normalize(root);
+        Map<String, Path> files = new TreeMap<>();
+        for (Map.Entry<Path, Path> it : sources.entrySet()) {
+            if (it.getKey().startsWith(base) && !it.getKey().equals(base))
+                files.put(base.relativize(it.getKey()).toString().replace('\\', '/'), it.getValue());
+        }
+        return files;
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+}
@@ -1,7 +1,6 @@
 package org.jetbrains.teamcity.agent;
 
 import lombok.Data;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.maven.archiver.MavenArchiveConfiguration;
 import org.apache.maven.archiver.MavenArchiver;
@@ -18,13 +17,11 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
-import org.apache.maven.shared.artifact.filter.StrictPatternExcludesArtifactFilter;
-import org.apache.maven.shared.artifact.filter.StrictPatternIncludesArtifactFilter;
 import org.apache.maven.shared.dependency.graph.DependencyNode;
 import org.apache.maven.shared.dependency.graph.filter.AndDependencyNodeFilter;
 import org.apache.maven.shared.dependency.graph.filter.ArtifactDependencyNodeFilter;
 import org.apache.maven.shared.dependency.graph.filter.DependencyNodeFilter;
-import org.apache.maven.shared.dependency.graph.internal.ConflictData;
+import org.apache.maven.shared.dependency.graph.traversal.BuildingDependencyNodeVisitor;
 import org.apache.maven.shared.dependency.graph.traversal.CollectingDependencyNodeVisitor;
 import org.apache.maven.shared.dependency.graph.traversal.DependencyNodeVisitor;
 import org.apache.maven.shared.dependency.graph.traversal.FilteringDependencyNodeVisitor;
@@ -45,23 +42,21 @@ import org.jetbrains.teamcity.data.ResolvedArtifact;
 import org.jetbrains.teamcity.velocity.NullTool;
 
 import java.io.*;
-import java.lang.reflect.Field;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.file.FileSystem;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static org.apache.maven.artifact.ArtifactUtils.key;
-import static org.jetbrains.teamcity.agent.AgentPluginWorkflow.TEAMCITY_AGENT_PLUGIN_CLASSIFIER;
-import static org.jetbrains.teamcity.ServerPluginWorkflow.TEAMCITY_PLUGIN_CLASSIFIER;
 
 @Data
 public class WorkflowUtil {
     public static final String TEAMCITY_PLUGIN_XML = "teamcity-plugin.xml";
+    private static final String STAGING_MANIFEST = "staging-manifest.txt";
 
     private final Log log;
     private final MavenProject project;
@@ -74,6 +69,22 @@ public class WorkflowUtil {
     private final ArchiverManager archiverManager;
     private String outputTimestamp;
     private MavenSession session;
+    private CompactDependencyGraph compactDependencyGraph;
+    private ReactorProjects reactorProjects;
+    private StagingManifest stagingManifest;
+    private CopyExecutor copyExecutor;
+    private DirectorySync directorySync;
+    private boolean syncByContent;
+    private long largeFileThreshold = LargeFileCopy.DEFAULT_THRESHOLD;
+    private LargeFileCopy largeFileCopy;
+    private List<String> storedEntries = PluginArchiveWriter.DEFAULT_STORED_PATTERNS;
+    private int zipParallelism;
+    private StagingPlan stagingPlan;
+    private final Map<Path, Object> destinationLocks = new ConcurrentHashMap<>();
+    private final ConflictInfo conflictInfo;
+    private final Map<DependencySpec, List<Artifact>> dependencyNodeLists = new HashMap<>();
+    private DependencyNode dependencyNodeListsRoot;
+    private boolean dumpDependencyTree;
 
     public WorkflowUtil(Log log, MavenProject project, Path workDirectory, ResolveUtil resolve, String tokens, ArtifactFactory artifactFactory, ArchiverManager archiverManager, String outputTimestamp, MavenSession session) {
         this.log = log;
@@ -85,6 +96,8 @@ public class WorkflowUtil {
         this.archiverManager = archiverManager;
         this.outputTimestamp = outputTimestamp;
         this.session = session;
+        this.conflictInfo = new ConflictInfo(log);
+        resolve.setReactorProjects(getReactorProjects());
     }
 //
 //    private Stream<Artifact> getArtifactList(MavenProject it) {
@@ -114,34 +127,52 @@ public class WorkflowUtil {
         }
     }
 
-    public Pair<List<ResolvedArtifact>,List<Path>>  copyTransitiveDependenciesInto(boolean failOnMissingDependencies, AssemblyContext assemblyContext, List<Artifact> nodes, Path toPath) throws MojoExecutionException {
+    public Pair<List<ResolvedArtifact>,List<Path>>  copyTransitiveDependenciesInto(boolean failOnMissingDependencies, AssemblyContext assemblyContext, List<Artifact> nodes, Path toPath, StagingMode stagingMode) throws MojoExecutionException {
         List<Path> destinations = new ArrayList<>();
         List<ResolvedArtifact> result = new ArrayList<>();
+        List<Artifact> included = new ArrayList<>();
+        List<Artifact> alternatives = new ArrayList<>();
         for (Artifact node : nodes) {
             Artifact alternativeArtifact = findAlternativeArtifacts(node);
             if (alternativeArtifact == null)
                 continue;
-            org.eclipse.aether.artifact.Artifact source = resolve.resolve(alternativeArtifact);
-            ResolvedArtifact ra = new ResolvedArtifact(source, isReactorProject(node));
+            included.add(node);
+            alternatives.add(alternativeArtifact);
+        }
+        ResolveUtil.MissingArtifacts missing = resolve.new MissingArtifacts();
+        IOException[] errors = new IOException[alternatives.size()];
+        List<ResolvedArtifact> resolved = new ResolveCopyPipeline<ResolvedArtifact>(getCopyExecutor()).run(alternatives, it -> resolve.resolveAvailable(it, missing),
+                (i, source) -> new ResolvedArtifact(source, isReactorProject(included.get(i)), resolve.getResolutionCache()),
+                ra -> toPath.resolve(ra.getFileName()), (i, ra) -> {
+                    try {
+                        internalCopy(failOnMissingDependencies, ra.getSource().getFile(), toPath.resolve(ra.getFileName()), stagingMode);
+                    } catch (IOException e) {
+                        errors[i] = e;
+                    }
+                });
+        resolve.saveLocalRepositoryIndex();
+        getStagingManifest().save();
+        getLargeFileCopy().report();
+        missing.report(alternatives.size(), failOnMissingDependencies);
+        for (int i = 0; i < included.size(); i++) {
+            ResolvedArtifact ra = resolved.get(i);
+            if (ra == null)
+                continue;
+            if (errors[i] != null)
+                reportCopyError(failOnMissingDependencies, ra.getSource().getFile(), toPath.resolve(ra.getFileName()), errors[i]);
             result.add(ra);
-            String name = ra.getFileName();
-            Path destination = toPath.resolve(name);
-            destinations.add(destination);
-            assemblyContext.addToLastPathSet(new DependencyPathEntry(node, ra.isReactorProject(), destination.getFileName().toString(), source.getFile().toPath()));
-            try {
-                internalCopy(failOnMissingDependencies, source.getFile(), destination, ra.isReactorProject());
-            } catch (IOException e) {
-                getLog().warn("Error while copying " + source + " to " + destination, e);
-            }
+            assemblyContext.addToLastPathSet(new DependencyPathEntry(included.get(i), ra.isReactorProject(), ra.getFileName(), ra.getSource().getFile().toPath()));
         }
+        destinations.addAll(CopyExecutor.lastByDestination(result, ra -> toPath.resolve(ra.getFileName())).keySet());
         return Pair.of(result, destinations);
     }
 
     public void removeOtherFiles(List<String> ignoreExtraFilesIn, Path toPath, List<Path> destinations) {
         try {
+            Set<Path> created = new HashSet<>(destinations);
             List<Path> existingFiles = Files.walk(toPath)
                     .filter(it -> !it.equals(toPath))
-                    .filter(it -> !destinations.contains(it))
+                    .filter(it -> !created.contains(it))
                     .filter(it -> shouldRemove(ignoreExtraFilesIn, toPath, it))
                     .collect(Collectors.toList());
             if (!existingFiles.isEmpty()) {
@@ -176,7 +207,7 @@ public class WorkflowUtil {
     }
 
 
-    private boolean shouldRemove(List<String> extraPaths, Path toPath, Path it) {
+    public boolean shouldRemove(List<String> extraPaths, Path toPath, Path it) {
         if (extraPaths != null) {
             Path relativePath = toPath.relativize(it);
             for (String extra : extraPaths) {
@@ -211,62 +242,94 @@ public class WorkflowUtil {
     }
 
 
+    /**
+     * Selects dependencies for all the given specs in one walk of the tree, so that subsequent
+     * {@link #getDependencyNodeList} calls for these specs don't traverse the tree again.
+     */
+    public void collectDependencyNodeLists(DependencyNode rootNode, Collection<DependencySpec> specs) {
+        if (dependencyNodeListsRoot != rootNode) {
+            dependencyNodeLists.clear();
+            dependencyNodeListsRoot = rootNode;
+        }
+        List<DependencySpec> missing = specs.stream().filter(it -> !dependencyNodeLists.containsKey(it)).collect(Collectors.toList());
+        if (!missing.isEmpty()) {
+            dependencyNodeLists.putAll(new DependencySpecTraversal(getLog(), getCompactDependencyGraph(rootNode), conflictInfo).traverse(missing));
+        }
+    }
+
     public List<Artifact> getDependencyNodeList(DependencyNode rootNode, String spec, List<String> exclusions) {
-        List<DependencyNode> nodes;
-        // looking for the nodes specified by user
-        if (Arrays.asList("*", ".").contains(spec)) {
-            nodes = Collections.singletonList(rootNode);
-        } else {
-            List<String> patterns = Arrays.asList(spec.split(","));
-            nodes = collectNodes(rootNode, new StrictPatternIncludesArtifactFilter(patterns));
-        }
-        // getting transitive dependencies excluding ones specified in exclusions filter. Not to include teamcity-core by mistake for example.
-        StringWriter writer = new StringWriter();
-        CollectingDependencyNodeVisitor transitiveCollectingVisitor = new CollectingDependencyNodeVisitor();
-        MultipleDependencyNodeVisitor mdnv = new MultipleDependencyNodeVisitor(Arrays.asList(transitiveCollectingVisitor, getSerializingDependencyNodeVisitor(writer)));
-        DependencyNodeFilter exclusionFilter = new ArtifactDependencyNodeFilter(new StrictPatternExcludesArtifactFilter(exclusions));
-        AndDependencyNodeFilter andDependencyNodeFilter = new AndDependencyNodeFilter(exclusionFilter, it -> isParentClassifierIn(it, TEAMCITY_PLUGIN_CLASSIFIER, TEAMCITY_AGENT_PLUGIN_CLASSIFIER));
-        SkipFilteringDependencyNodeVisitor visitor = new SkipFilteringDependencyNodeVisitor(mdnv, andDependencyNodeFilter);
-        nodes.forEach(it -> it.accept(visitor));
-        getLog().info("Dependencies according to spec " + spec + ":\n" + writer);
-        List<DependencyNode> nodes1 = transitiveCollectingVisitor.getNodes();
-        // now conflicted dependencies might be in list, need to find them and resolve to the right version
-        List<DependencyNode> result = new ArrayList<>();
-        for (DependencyNode node : nodes1) {
-            ConflictData cd = getPrivateField(node);
-            if (cd != null && cd.getWinnerVersion() != null) {
-                List<DependencyNode> substitutions = findSubstitutions(rootNode, node, cd.getWinnerVersion());
-                CollectingDependencyNodeVisitor collector = new CollectingDependencyNodeVisitor();
-                SkipFilteringDependencyNodeVisitor visitor1 = new SkipFilteringDependencyNodeVisitor(collector, exclusionFilter);
-                substitutions.forEach(it -> it.accept(visitor1));
-                result.addAll(collector.getNodes());
-            } else {
-                result.add(node);
-            }
+        DependencySpec dependencySpec = new DependencySpec(spec, exclusions);
+        collectDependencyNodeLists(rootNode, Collections.singletonList(dependencySpec));
+        List<Artifact> result = dependencyNodeLists.get(dependencySpec);
+        String dump = "";
+        if (isDependencyTreeDumpEnabled()) {
+            Path treeFile = getWorkDirectory().resolve("dependency-tree-" + toFileName(dependencySpec) + ".txt");
+            if (writeDependencyTree(treeFile, writer -> serializeDependencyNodeList(rootNode, dependencySpec, writer)))
+                dump = ", written to " + treeFile;
+        }
+        getLog().info("Dependencies according to spec " + spec + ": " + result.size() + " artifacts" + dump);
+        return result;
+    }
+
+    /**
+     * Logs a one-line summary of the dependency tree and writes the whole tree into the work directory when
+     * {@link #dumpDependencyTree} is set or debug logging is enabled.
+     */
+    public void reportDependencyTree(DependencyNode rootNode) {
+        CompactDependencyGraph graph = getCompactDependencyGraph(rootNode);
+        String dump = "";
+        if (isDependencyTreeDumpEnabled()) {
+            Path treeFile = getWorkDirectory().resolve("dependency-tree.txt");
+            if (writeDependencyTree(treeFile, writer -> rootNode.accept(new BuildingDependencyNodeVisitor(getSerializingDependencyNodeVisitor(writer)))))
+                dump = ", written to " + treeFile;
         }
-        return result.stream().map(DependencyNode::getArtifact).distinct().collect(Collectors.toList());
+        getLog().info("Dependency tree of " + rootNode.getArtifact() + ": " + graph.size() + " nodes, depth " + graph.getMaxDepth() + ", " + graph.getConflictedCount() + " conflicts" + dump);
+    }
+
+    private boolean isDependencyTreeDumpEnabled() {
+        return dumpDependencyTree || getLog().isDebugEnabled();
     }
 
-    private boolean isParentClassifierIn(DependencyNode it, String s, String s1) {
-        if (it.getParent() != null && (Objects.equals(s, it.getParent().getArtifact().getClassifier()) ||
-                Objects.equals(s1, it.getParent().getArtifact().getClassifier())))
+    private boolean writeDependencyTree(Path treeFile, Consumer<Writer> serializer) {
+        try (Writer writer = Files.newBufferedWriter(createDir(treeFile.getParent()).resolve(treeFile.getFileName()))) {
+            serializer.accept(writer);
+            return true;
+        } catch (IOException e) {
+            getLog().warn("Can't write dependency tree to " + treeFile, e);
             return false;
-        return true;
+        }
     }
 
-    private List<DependencyNode> findSubstitutions(DependencyNode rootNode, DependencyNode node, String winnerVersion) {
-        Artifact a = node.getArtifact();
-        StringJoiner sj = new StringJoiner(":");
-        sj.add(a.getGroupId());
-        sj.add(a.getArtifactId());
-        sj.add(a.getType());
-        sj.add(winnerVersion);
+    /**
+     * @return file name part for the spec, selections of the same spec with different exclusions get different names
+     */
+    private static String toFileName(DependencySpec spec) {
+        String name = spec.getSpec().replaceAll("[^\\w.\\-]", "_");
+        if (name.length() > 100)
+            name = name.substring(0, 100);
+        if (spec.getExclusions() != null && !spec.getExclusions().isEmpty())
+            name += "-" + Integer.toHexString(spec.getExclusions().hashCode());
+        return name;
+    }
 
-        StrictPatternIncludesArtifactFilter filter = new StrictPatternIncludesArtifactFilter(Collections.singletonList(sj.toString()));
-        AndDependencyNodeFilter nodeFilter = new AndDependencyNodeFilter(new ArtifactDependencyNodeFilter(filter), node1 -> node1 != node);
-        CollectingDependencyNodeVisitor collector = new CollectingDependencyNodeVisitor();
-        rootNode.accept(new FilteringDependencyNodeVisitor(collector, nodeFilter));
-        return collector.getNodes();
+    private void serializeDependencyNodeList(DependencyNode rootNode, DependencySpec spec, Writer writer) {
+        List<DependencyNode> nodes;
+        if (spec.isProjectItself()) {
+            nodes = Collections.singletonList(rootNode);
+        } else {
+            nodes = collectNodes(rootNode, ArtifactPatternMatcher.includes(spec.getPatterns()));
+        }
+        DependencyNodeFilter exclusionFilter = new ArtifactDependencyNodeFilter(ArtifactPatternMatcher.excludes(spec.getExclusions()));
+        CompactDependencyGraph graph = getCompactDependencyGraph(rootNode);
+        AndDependencyNodeFilter andDependencyNodeFilter = new AndDependencyNodeFilter(exclusionFilter, it -> !graph.hasPluginParent(graph.indexOf(it)));
+        SkipFilteringDependencyNodeVisitor visitor = new SkipFilteringDependencyNodeVisitor(getSerializingDependencyNodeVisitor(writer), andDependencyNodeFilter);
+        nodes.forEach(it -> it.accept(visitor));
+    }
+
+    private CompactDependencyGraph getCompactDependencyGraph(DependencyNode rootNode) {
+        if (compactDependencyGraph == null || compactDependencyGraph.getRootNode() != rootNode)
+            compactDependencyGraph = new CompactDependencyGraph(rootNode, conflictInfo);
+        return compactDependencyGraph;
     }
 
 
@@ -301,72 +364,104 @@ public class WorkflowUtil {
         return collectingVisitor.getNodes();
     }
 
-    private void internalCopy(boolean failOnMissingDependencies, File source, Path destination, boolean isReactorProject) throws IOException {
-        try {
-            if (!destination.toFile().exists() || isReactorProject || destination.toFile().length() != source.length()) {
-                Files.copy(source.toPath(), destination);
+    /**
+     * Stages a dependency file. Called from the copy workers, so errors are thrown to be reported by the caller in a
+     * stable order with {@link #reportCopyError}.
+     */
+    private void internalCopy(boolean failOnMissingDependencies, File source, Path destination, StagingMode stagingMode) throws IOException {
+        // dependencies with the same file name are copied one at a time
+        synchronized (destinationLock(destination)) {
+            try {
+                if (source.isDirectory()) {
+                    // reactor project which isn't packaged yet
+                    if (!destination.toFile().exists())
+                        Files.copy(source.toPath(), destination);
+                } else if (stagingPlan != null) {
+                    if (!source.isFile())
+                        throw new NoSuchFileException(source.toString());
+                    stagingPlan.add(source.toPath(), destination);
+                } else {
+                    getStagingManifest().stage(source, destination, stagingMode);
+                }
+            } catch (NoSuchFileException e) {
+                if (!failOnMissingDependencies)
+                    destination.toFile().createNewFile();
+                throw e;
+            } catch (FileAlreadyExistsException e) {
+                Files.copy(source.toPath(), destination, REPLACE_EXISTING);
             }
-        } catch (NoSuchFileException e) {
+        }
+    }
+
+    private Object destinationLock(Path destination) {
+        return destinationLocks.computeIfAbsent(destination, it -> new Object());
+    }
+
+    private void reportCopyError(boolean failOnMissingDependencies, File source, Path destination, IOException e) {
+        if (e instanceof NoSuchFileException) {
             if (failOnMissingDependencies)
                 getLog().error("Can't find dependency to add to plugin " + source);
-            else
-                destination.toFile().createNewFile();
             getLog().warn("NoSuchFileException: " + e.getMessage());
-        } catch (FileAlreadyExistsException e) {
-            Files.copy(source.toPath(), destination, REPLACE_EXISTING);
-        } catch (IOException e) {
-            getLog().warn(e);
+        } else {
+            getLog().warn("Error while copying " + source + " to " + destination, e);
+        }
+    }
+
+    public DirectorySync getDirectorySync() {
+        if (directorySync == null) {
+            directorySync = new DirectorySync(getLog(), getCopyExecutor(), syncByContent);
+            directorySync.setLargeFileCopy(getLargeFileCopy());
+            directorySync.setStagingPlan(stagingPlan);
         }
+        return directorySync;
+    }
+
+    // called from the copy workers too
+    public synchronized LargeFileCopy getLargeFileCopy() {
+        if (largeFileCopy == null)
+            largeFileCopy = new LargeFileCopy(getLog(), largeFileThreshold);
+        return largeFileCopy;
+    }
+
+    /**
+     * Copies a single file, large ones with {@link LargeFileCopy}, or plans it in the direct archive mode.
+     */
+    public void copyFile(Path source, Path destination) throws IOException {
+        if (stagingPlan != null) {
+            // reported as if the copy failed
+            if (!Files.isRegularFile(source))
+                throw new NoSuchFileException(source.toString());
+            stagingPlan.add(source, destination);
+        } else if (getLargeFileCopy().isLarge(Files.size(source)))
+            getLargeFileCopy().copy(source, destination);
+        else
+            Files.copy(source, destination, REPLACE_EXISTING, COPY_ATTRIBUTES);
     }
 
+    public CopyExecutor getCopyExecutor() {
+        if (copyExecutor == null)
+            copyExecutor = new CopyExecutor(0);
+        return copyExecutor;
+    }
 
-    private ConflictData getPrivateField(DependencyNode node) {
-        try {
-            Field f = node.getClass().getDeclaredField("data");
-            f.setAccessible(true);
-            Object o = f.get(node);
-            return (ConflictData) o;
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            return null;
+
+    // called from the copy workers, which must all record into the same manifest
+    private synchronized StagingManifest getStagingManifest() {
+        if (stagingManifest == null) {
+            stagingManifest = StagingManifest.load(getLog(), getWorkDirectory().resolve(STAGING_MANIFEST), getWorkDirectory());
+            stagingManifest.setLargeFileCopy(getLargeFileCopy());
         }
+        return stagingManifest;
     }
 
     private boolean isReactorProject(Artifact a) {
-        // reactorProjectList contains also a libraries, in order to distinguish we can check location (should be under project.basedir) somewhere or
-        // version should match multi-module project.
-
-        //        session.getAllProjects()
-        Optional<Artifact> a1 = session.getProjects().stream().map(MavenProject::getArtifact).filter(it -> compareArtifacts(it, a)).findFirst();
-        return a1.isPresent();
-
-//        if (reactorProjectList.contains(a)) {
-//            Optional<Artifact> a1 = reactorProjectList.stream().filter(it -> it.equals(a)).findFirst();
-//            if (a1.isPresent()) {
-
-//                List<Artifact> strings = new ArrayList<>();
-//                Path baseDir = project.getParent().getBasedir().toPath();
-//                strings.add(project.getParent().getArtifact());
-//                MavenXpp3Reader reader = new MavenXpp3Reader();
-//                for (String module: project.getParent().getModules()) {
-//                    try {
-//                        FileInputStream fis = new FileInputStream(baseDir.resolve(module).resolve("pom.xml").toFile());
-//                        Model m = reader.read(fis);
-//                        strings.add(artifactFactory.createProjectArtifact(m.getGroupId(), m.getArtifactId(), m.getVersion()));
-//                    } catch (IOException | XmlPullParserException e) {
-//                        throw new RuntimeException(e);
-//                    }
-//                }
-//                boolean hasCommonRootPath = a1.get().getFile().getAbsolutePath().startsWith(project.getParent().getBasedir().getAbsolutePath());
-//                Artifact artifact = a1.get();
-//                return artifact.getVersion().equalsIgnoreCase(project.getVersion()) && project.getGroupId().equalsIgnoreCase(artifact.getGroupId());
-//            }
-//        }
+        return getReactorProjects().isReactorProject(a);
     }
 
-    private boolean compareArtifacts(Artifact it, Artifact a) {
-        return Objects.equals(it.getArtifactId(), a.getArtifactId())
-                && Objects.equals(it.getGroupId(), a.getGroupId())
-                && Objects.equals(it.getVersion(), a.getVersion());
+    public ReactorProjects getReactorProjects() {
+        if (reactorProjects == null)
+            reactorProjects = ReactorProjects.of(session);
+        return reactorProjects;
     }
 
     public Path getJarFile(Path basedir, String resultFinalName, String classifier) {
@@ -410,53 +505,69 @@ public class WorkflowUtil {
     public Path zipFile(Path source, Path baseDir, String zipName) throws MojoFailureException {
         try {
             Path zipPath = Files.createDirectories(baseDir).resolve(zipName);
-            if (zipPath.toFile().exists()) {
-                boolean deleted = zipPath.toFile().delete();
-                if (!deleted) {
-                    getLog().warn("Failed to delete " + zipPath);
-                }
-            }
-
-            URI uri = new URI("jar", zipPath.toUri().toString(), null);
-            Optional<Path> largeFiles = Files.walk(source).filter(it -> it.toFile().length() > 50 * 1024 * 1024).findFirst();
-            Map<String, Object> env = largeFiles.isPresent() ? Jdk8Compat.ofMap("create", "true", "useTempFile", Boolean.TRUE) : Jdk8Compat.ofMap("create", "true");
-            try (FileSystem zipfs = FileSystems.newFileSystem(uri, env)) {
-                List<Path> filesInAgentZip = Files.walk(source).collect(Collectors.toList());
-                for (Path entry : filesInAgentZip) {
-                    Path relativePath = zipfs.getPath(source.relativize(entry).toString());
-                    try {
-                        if (!Jdk8Compat.isBlank(relativePath.toString()))
-                            Files.copy(entry, relativePath);
-                    } catch (IOException e) {
-                        getLog().warn("Can't zip file " + entry + " to " + relativePath, e);
-                    }
-                }
-            }
+            createArchiveWriter().write(PluginArchiveWriter.entriesOf(source, stagingPlan), zipPath);
             return zipPath;
-        } catch (IOException | URISyntaxException e) {
+        } catch (IOException e) {
             getLog().warn(e);
             throw new MojoFailureException("Error while building " + zipName, e);
         }
     }
 
-    public Pair<List<ResolvedArtifact>,List<Path>> copyDependenciesInto(AssemblyContext assemblyContext, boolean failOnMissingDependencies, List<Dependency> nodes, Path toPath) throws MojoExecutionException {
+    /**
+     * Zips the directory and, in the same pass, the packed zip holding its content in the directory of the same name.
+     * Entries of the packed zip are copied from the first one without compressing them again.
+     *
+     * @return paths of the zip and of the packed zip
+     */
+    public Pair<Path, Path> zipFileWithPacked(Path source, Path baseDir, String zipName, String packedZipName) throws MojoFailureException {
+        try {
+            Path zipPath = Files.createDirectories(baseDir).resolve(zipName);
+            Path packedZipPath = baseDir.resolve(packedZipName);
+            PluginArchiveWriter.Entry packedRoot = new PluginArchiveWriter.Entry(source.getFileName() + "/", source);
+            createArchiveWriter().write(PluginArchiveWriter.entriesOf(source, stagingPlan), zipPath, packedZipPath, packedRoot);
+            return Pair.of(zipPath, packedZipPath);
+        } catch (IOException e) {
+            getLog().warn(e);
+            throw new MojoFailureException("Error while building " + zipName + " and " + packedZipName, e);
+        }
+    }
+
+    private PluginArchiveWriter createArchiveWriter() {
+        PluginArchiveWriter writer = new PluginArchiveWriter(getLog(), storedEntries);
+        writer.setParallelism(zipParallelism);
+        writer.setExecutor(getCopyExecutor());
+        return writer;
+    }
+
+    public Pair<List<ResolvedArtifact>,List<Path>> copyDependenciesInto(AssemblyContext assemblyContext, boolean failOnMissingDependencies, List<Dependency> nodes, Path toPath, StagingMode stagingMode) throws MojoExecutionException {
         assemblyContext.getPaths().add(new PathSet(toPath));
         List<Path> destinations = new ArrayList<>();
         List<ResolvedArtifact> result = new ArrayList<>();
-        for (Dependency node : nodes) {
-            Artifact a = artifactFactory.createArtifactWithClassifier(node.getGroupId(), node.getArtifactId(), node.getVersion(), node.getType(), node.getClassifier());
-            org.eclipse.aether.artifact.Artifact source = resolve.resolve(a);
-            ResolvedArtifact ra = new ResolvedArtifact(source, isReactorProject(a));
-            String name = ra.getFileName();
-            Path destination = toPath.resolve(name);
-            destinations.add(destination);
-            try {
-                internalCopy(failOnMissingDependencies, source.getFile(), destination, ra.isReactorProject());
-                assemblyContext.addToLastPathSet(new ArtifactPathEntry(name, getAssemblyName(a.getArtifactId(), "AGENT", "EXPLODED")));
-            } catch (IOException e) {
-                getLog().warn("Error while copying " + source + " to " + destination, e);
-            }
+        List<Artifact> artifacts = nodes.stream()
+                .map(node -> artifactFactory.createArtifactWithClassifier(node.getGroupId(), node.getArtifactId(), node.getVersion(), node.getType(), node.getClassifier()))
+                .collect(Collectors.toList());
+        List<org.eclipse.aether.artifact.Artifact> sources = resolve.resolveAll(artifacts, failOnMissingDependencies);
+        List<ResolvedArtifact> resolved = new ArrayList<>();
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < artifacts.size(); i++) {
+            org.eclipse.aether.artifact.Artifact source = sources.get(i);
+            resolved.add(source == null ? null : new ResolvedArtifact(source, isReactorProject(artifacts.get(i)), resolve.getResolutionCache()));
+            if (source != null)
+                found.add(i);
+        }
+        Map<Path, Integer> copied = CopyExecutor.lastByDestination(found, i -> toPath.resolve(resolved.get(i).getFileName()));
+        for (Pair<Integer, IOException> failure : getCopyExecutor().forEach(new ArrayList<>(copied.values()), i -> internalCopy(failOnMissingDependencies,
+                sources.get(i).getFile(), toPath.resolve(resolved.get(i).getFileName()), stagingMode))) {
+            int i = failure.getLeft();
+            reportCopyError(failOnMissingDependencies, sources.get(i).getFile(), toPath.resolve(resolved.get(i).getFileName()), failure.getRight());
         }
+        destinations.addAll(copied.keySet());
+        for (int i = 0; i < artifacts.size(); i++) {
+            if (resolved.get(i) != null)
+                assemblyContext.addToLastPathSet(new ArtifactPathEntry(resolved.get(i).getFileName(), getAssemblyName(artifacts.get(i).getArtifactId(), "AGENT", "EXPLODED")));
+        }
+        getStagingManifest().save();
+        getLargeFileCopy().report();
         return Pair.of(result, destinations);
     }
 
@@ -490,7 +601,8 @@ public class WorkflowUtil {
         return results;
     }
 
-    public void processExtras(List<SourceDest> extras, Path destinationRoot, AssemblyContext assemblyContext, List<Path> destinations) {
+    public void processExtras(List<SourceDest> extras, Path destinationRoot, AssemblyContext assemblyContext, List<Path> destinations) throws MojoExecutionException {
+        List<Pair<Path, Path>> plan = new ArrayList<>();
         for (SourceDest extra : extras) {
             Path source = absOrProject(extra.getSource());
             if (source.toFile().exists()) {
@@ -504,17 +616,11 @@ public class WorkflowUtil {
                 if (source.toFile().isFile()) {
                     assemblyContext.addToLastPathSet(new FilePathEntry(extra.getDestName(), source));
                     Path fullPath = (extra.hasDestName()) ? dest.resolve(extra.getDestName()) : dest.resolve(source.getFileName());
-                    destinations.add(fullPath);
-                    try {
-                        FileUtils.copyFile(source.toFile(), fullPath.toFile());
-                    } catch (IOException e) {
-                        getLog().warn(source + " can't copy to " + fullPath + " because of " + e.getMessage());
-                    }
+                    plan.add(Pair.of(source, fullPath));
                 } else if (source.toFile().isDirectory()) {
                     assemblyContext.addToLastPathSet(new DirCopyPathEntry(source));
-                    destinations.addAll(findPathsInRelativeTo(source, dest));
                     try {
-                        FileUtils.copyDirectory(source.toFile(), dest.toFile());
+                        plan.addAll(DirectorySync.tree(source, dest));
                     } catch (IOException e) {
                         getLog().warn(source + " can't copy to " + dest + " because of " + e.getMessage());
                     }
@@ -525,7 +631,12 @@ public class WorkflowUtil {
                 getLog().warn(extra.getSource() + " not found, skipping");
             }
         }
-
+        // extras share the directory with other files, which are removed by removeOtherFiles
+        DirectorySync.Result result = getDirectorySync().sync(plan, null, it -> true);
+        destinations.addAll(result.getDestinations());
+        for (Pair<Pair<Path, Path>, IOException> failure : result.getFailures()) {
+            getLog().warn(failure.getLeft().getLeft() + " can't copy to " + failure.getLeft().getRight() + " because of " + failure.getRight().getMessage());
+        }
     }
 
     public List<Path> findPathsInRelativeTo(Path source, Path dest) {
@@ -3,6 +3,7 @@ package org.jetbrains.teamcity.data;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.eclipse.aether.artifact.Artifact;
 import org.jetbrains.teamcity.AssemblePluginMojo;
+import org.jetbrains.teamcity.agent.ResolutionCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,10 +25,21 @@ public class ResolvedArtifact {
 
     private final org.eclipse.aether.artifact.Artifact source;
     private final boolean reactorProject;
+    private final ResolutionCache resolutionCache;
+    private String fileName;
 
     public ResolvedArtifact(Artifact source, boolean isReactorProject) {
+        this(source, isReactorProject, null);
+    }
+
+    public ResolvedArtifact(Artifact source, boolean isReactorProject, ResolutionCache resolutionCache) {
         this.source = source;
         this.reactorProject = isReactorProject;
+        this.resolutionCache = resolutionCache;
+    }
+
+    public Artifact getSource() {
+        return source;
     }
 
     public boolean isReactorProject() {
@@ -35,6 +47,12 @@ public class ResolvedArtifact {
     }
 
     public String getFileName() {
+        if (fileName == null)
+            fileName = resolutionCache != null ? resolutionCache.getFileName(source, ResolvedArtifact::computeFileName) : computeFileName(source);
+        return fileName;
+    }
+
+    private static String computeFileName(Artifact source) {
         String name = source.getFile().getName();
         if (source.getClassifier() != null && Objects.equals("teamcity-agent-plugin", source.getClassifier())) {
             name = source.getArtifactId() + "." + source.getExtension();
@@ -0,0 +1,83 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.resolver.filter.ArtifactFilter;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.shared.artifact.filter.StrictPatternExcludesArtifactFilter;
+import org.apache.maven.shared.artifact.filter.StrictPatternIncludesArtifactFilter;
+import org.assertj.core.api.SoftAssertions;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ArtifactPatternMatcherTest {
+    private static final List<String> PATTERNS = List.of(
+            "", "*", ":::", "::::", "a:b:c:d:e",
+            "org.jetbrains.teamcity", "org.jetbrains", "org.jetbrains.*", "*.teamcity", "*jetbrains*", "**",
+            "::zip", ":::*", "::jar:1.0", "::*ar", "::j*",
+            "org.jetbrains.teamcity:server-api", "org.jetbrains.teamcity:server-api:jar", "org.jetbrains.teamcity:*-api:jar:2023.05",
+            ":moduleA:*:*", "commons-beanutils:commons-beanutils-core:*:*", "commons-codec",
+            "*:*:*:[1.0,2.0)", "*:*:*:(,1.5]", "*:*:*:[1.1.0]", "*:*:*:[oops", "*:*:*:[1.0*",
+            "*:*:*:1.1-SNAPSHOT", "*:*:*:1.1-20230101.101010-1"
+    );
+
+    private static final List<Artifact> ARTIFACTS = List.of(
+            artifact("org.jetbrains.teamcity", "server-api", "jar", "2023.05"),
+            artifact("org.jetbrains.teamcity", "agent-api", "jar", "2023.05"),
+            artifact("org.jetbrains.teamcity", "teamcity-plugin", "zip", "1.0"),
+            artifact("org.jetbrains", "annotations", "jar", "1.0"),
+            artifact("com.example.teamcity", "plugin", "jar", "1.1.0"),
+            artifact("commons-beanutils", "commons-beanutils-core", "jar", "1.8.3"),
+            artifact("commons-codec", "commons-codec", "jar", "1.15"),
+            artifact("org.example", "moduleA", "jar", "1.1-SNAPSHOT"),
+            artifact("org.example", "moduleA", "jar", "1.1-20230101.101010-1"),
+            artifact("org.example", "moduleB", "war", "1.5"),
+            artifact("org.example", "moduleC", "test-jar", "2.0")
+    );
+
+    @Test
+    public void testSinglePatternParity() {
+        SoftAssertions sa = new SoftAssertions();
+        for (String pattern : PATTERNS) {
+            assertParity(sa, List.of(pattern));
+        }
+        sa.assertAll();
+    }
+
+    @Test
+    public void testPatternListParity() {
+        SoftAssertions sa = new SoftAssertions();
+        assertParity(sa, List.of());
+        assertParity(sa, List.of("org.jetbrains.teamcity", "::zip"));
+        assertParity(sa, List.of("commons-codec", "*:*:*:[1.0,2.0)", "org.jetbrains.*"));
+        assertParity(sa, PATTERNS);
+        List<String> many = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            many.add("group" + i + ":artifact" + i);
+        }
+        many.add("commons-codec");
+        assertParity(sa, many);
+        sa.assertAll();
+    }
+
+    private static void assertParity(SoftAssertions sa, List<String> patterns) {
+        StrictPatternIncludesArtifactFilter includes = new StrictPatternIncludesArtifactFilter(patterns);
+        StrictPatternExcludesArtifactFilter excludes = new StrictPatternExcludesArtifactFilter(patterns);
+        ArtifactFilter compiledIncludes = ArtifactPatternMatcher.includes(patterns);
+        ArtifactFilter compiledExcludes = ArtifactPatternMatcher.excludes(patterns);
+        for (Artifact a : ARTIFACTS) {
+            // twice to check remembered results as well
+            for (int i = 0; i < 2; i++) {
+                sa.assertThat(compiledIncludes.include(a)).as("includes " + patterns + " " + a).isEqualTo(includes.include(a));
+                sa.assertThat(compiledExcludes.include(a)).as("excludes " + patterns + " " + a).isEqualTo(excludes.include(a));
+            }
+        }
+    }
+
+    private static Artifact artifact(String groupId, String artifactId, String type, String version) {
+        return new DefaultArtifact(groupId, artifactId, VersionRange.createFromVersion(version), "compile", type, null, new DefaultArtifactHandler(type));
+    }
+}
@@ -1,11 +1,20 @@
 package org.jetbrains.teamcity;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.MojoExecution;
+import org.jetbrains.teamcity.agent.ResultArtifact;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -394,5 +403,74 @@ public class AssemblePluginMojoTestCase extends BasePluginTestCase {
         );
     }
 
+    @Test
+    public void testDirectArchiveWritesSameZips() throws Exception {
+        Path workDirectory = getTestDir("unit/project-to-test").toPath().resolve("target/teamcity");
+        // the files of the test resources, the builds may remove them, so each build starts with them written again
+        Map<String, byte[]> fixtures = Map.of(
+                "plugin/project-to-test/bundles/1", new byte[0],
+                "agent-unpacked/project-to-test/lib/test.library.jar", new byte[0]);
+        try {
+            Map<String, List<String>> copied = buildZipEntries(false, workDirectory, fixtures);
+            Map<String, List<String>> direct = buildZipEntries(true, workDirectory, fixtures);
+            assertThat(direct.keySet()).containsExactlyElementsOf(copied.keySet());
+            assertThat(direct).isEqualTo(copied);
+        } finally {
+            resetWorkDirectory(workDirectory, fixtures);
+        }
+    }
 
+    /**
+     * Builds the plugin from a work directory holding only the fixture files.
+     *
+     * @return names, sizes and CRCs of the entries of the attached zips by their classifiers and file names
+     */
+    private Map<String, List<String>> buildZipEntries(boolean directArchive, Path workDirectory, Map<String, byte[]> fixtures) throws Exception {
+        resetWorkDirectory(workDirectory, fixtures);
+        MavenSession session = initMavenSession("unit/project-to-test");
+        MojoExecution execution = rule.newMojoExecution("build");
+        AssemblePluginMojo mojo = (AssemblePluginMojo) rule.lookupConfiguredMojo(session, execution);
+        mojo.setFailOnMissingDependencies(false);
+        mojo.getServer().setIgnoreExtraFilesIn(List.of("bundles"));
+        mojo.setDirectArchive(directArchive);
+        assertThat(mojo.getWorkDirectory().toPath()).isEqualTo(workDirectory);
+        mojo.execute();
+        List<ResultArtifact> artifacts = new ArrayList<>(mojo.getAgentPluginWorkflow().getAttachedArtifacts());
+        artifacts.addAll(mojo.getServerPluginWorkflow().getAttachedArtifacts());
+        Map<String, List<String>> result = new TreeMap<>();
+        for (ResultArtifact artifact : artifacts) {
+            if (!"zip".equals(artifact.getType()))
+                continue;
+            try (ZipFile zipFile = new ZipFile(artifact.getFile().toFile())) {
+                List<String> entries = new ArrayList<>();
+                for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                    if (!entry.getName().endsWith(".zip")) {
+                        entries.add(entry.getName() + " " + entry.getSize() + " " + Long.toHexString(entry.getCrc()));
+                        continue;
+                    }
+                    // the nested agent plugin has the times of the files of its build, only its entries are compared
+                    entries.add(entry.getName() + " " + entry.getSize());
+                    try (ZipInputStream nested = new ZipInputStream(zipFile.getInputStream(entry))) {
+                        for (ZipEntry it = nested.getNextEntry(); it != null; it = nested.getNextEntry()) {
+                            CRC32 crc = new CRC32();
+                            crc.update(nested.readAllBytes());
+                            entries.add(entry.getName() + "!" + it.getName() + " " + Long.toHexString(crc.getValue()));
+                        }
+                    }
+                }
+                result.put(artifact.getClassifier() + " " + artifact.getFile().getFileName(), entries);
+            }
+        }
+        assertThat(result).isNotEmpty();
+        return result;
+    }
+
+    private static void resetWorkDirectory(Path workDirectory, Map<String, byte[]> fixtures) throws IOException {
+        FileUtils.deleteDirectory(workDirectory.toFile());
+        for (Map.Entry<String, byte[]> it : fixtures.entrySet()) {
+            Path file = workDirectory.resolve(it.getKey());
+            Files.createDirectories(file.getParent());
+            Files.write(file, it.getValue());
+        }
+    }
 }
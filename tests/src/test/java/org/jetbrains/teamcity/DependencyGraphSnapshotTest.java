@@ -0,0 +1,206 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.ArtifactHandler;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.handler.manager.ArtifactHandlerManager;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Exclusion;
+import org.apache.maven.model.Model;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.apache.maven.shared.dependency.graph.internal.ConflictData;
+import org.apache.maven.shared.dependency.graph.traversal.SerializingDependencyNodeVisitor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DependencyGraphSnapshotTest {
+    private static final ArtifactHandlerManager HANDLERS = new ArtifactHandlerManager() {
+        @Override
+        public ArtifactHandler getArtifactHandler(String type) {
+            return new DefaultArtifactHandler(type);
+        }
+
+        @Override
+        public void addHandlers(Map<String, ArtifactHandler> handlers) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTripKeepsConflictData() throws Exception {
+        DependencyNode root = createVerboseTree();
+        DependencyGraphSnapshot snapshot = new DependencyGraphSnapshot(new SystemStreamLog(), folder.getRoot().toPath().resolve("graph.bin"), HANDLERS);
+        snapshot.write("fingerprint", root);
+        DependencyNode restored = snapshot.read("fingerprint");
+
+        assertThat(restored).isNotNull();
+        assertThat(serialize(restored)).isEqualTo(serialize(root));
+        assertThat(describe(restored)).isEqualTo(describe(root));
+        List<DependencySpec> specs = List.of(
+                new DependencySpec(".", List.of()),
+                new DependencySpec("org.example:a", List.of()),
+                new DependencySpec("org.example:b", List.of("org.example:d")));
+        assertThat(select(restored, specs)).isEqualTo(select(root, specs));
+        assertThat(select(root, specs).get(0)).contains("org.example:c:jar:2.0:compile").doesNotContain("org.example:c:jar:1.0:runtime");
+    }
+
+    @Test
+    public void testOutdatedOrBrokenSnapshotIsNotRead() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("graph.bin");
+        DependencyGraphSnapshot snapshot = new DependencyGraphSnapshot(new SystemStreamLog(), file, HANDLERS);
+        assertThat(snapshot.read("fingerprint")).isNull();
+        snapshot.write("fingerprint", createVerboseTree());
+        assertThat(snapshot.read("other")).isNull();
+
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length / 2));
+        assertThat(snapshot.read("fingerprint")).isNull();
+        Files.write(file, Arrays.copyOf(content, content.length - 1));
+        assertThat(snapshot.read("fingerprint")).isNull();
+        byte[] corrupt = content.clone();
+        // string indexes of the first node point out of the string table
+        for (int i = content.length / 2; i < content.length; i++) {
+            corrupt[i] = (byte) 0x7f;
+        }
+        Files.write(file, corrupt);
+        assertThat(snapshot.read("fingerprint")).isNull();
+        Files.write(file, new byte[]{1, 2, 3});
+        assertThat(snapshot.read("fingerprint")).isNull();
+    }
+
+    @Test
+    public void testFingerprintTracksPomsAndSnapshots() throws Exception {
+        Path snapshotFile = folder.newFile("lib-1.0-SNAPSHOT.jar").toPath();
+        MavenProject project = project("app", "1.0");
+        MavenProject library = project("lib", "1.0-SNAPSHOT");
+        Artifact libraryArtifact = artifact("lib", "1.0-SNAPSHOT", "compile");
+        libraryArtifact.setFile(snapshotFile.toFile());
+        project.setArtifacts(new LinkedHashSet<>(List.of(libraryArtifact, artifact("other", "1.0", "compile"))));
+        MavenProject unrelated = project("unrelated", "1.0");
+        MavenSession session = new MavenSession(null, null, new DefaultMavenExecutionRequest(), new DefaultMavenExecutionResult());
+        session.setProjects(List.of(project, library, unrelated));
+
+        String fingerprint = DependencyGraphSnapshot.fingerprint(project, session, "key");
+        assertThat(DependencyGraphSnapshot.fingerprint(project, session, "key")).isEqualTo(fingerprint);
+        assertThat(DependencyGraphSnapshot.fingerprint(project, session, "other key")).isNotEqualTo(fingerprint);
+
+        unrelated.getModel().addProperty("changed", "true");
+        assertThat(DependencyGraphSnapshot.fingerprint(project, session, "key")).isEqualTo(fingerprint);
+
+        project.getModel().addProperty("changed", "true");
+        String projectChanged = DependencyGraphSnapshot.fingerprint(project, session, "key");
+        assertThat(projectChanged).isNotEqualTo(fingerprint);
+
+        library.getModel().addProperty("changed", "true");
+        String libraryChanged = DependencyGraphSnapshot.fingerprint(project, session, "key");
+        assertThat(libraryChanged).isNotEqualTo(projectChanged);
+
+        Files.setLastModifiedTime(snapshotFile, FileTime.fromMillis(Files.getLastModifiedTime(snapshotFile).toMillis() - 60_000));
+        assertThat(DependencyGraphSnapshot.fingerprint(project, session, "key")).isNotEqualTo(libraryChanged);
+    }
+
+    /**
+     * app
+     * +- a (compile)
+     * |  \- (c:1.0 runtime, omitted for conflict with 2.0)
+     * +- b (compile, optional, excludes x:y)
+     * |  \- c:2.0 (compile, managed from 1.5)
+     * |     \- d (provided)
+     * \- e (test)
+     *    \- (c:2.0, omitted for duplicate, scope updated from test)
+     */
+    private static DependencyNode createVerboseTree() {
+        DependencyNode root = node(null, artifact("app", "1.0", null), null, null);
+        DependencyNode a = node(root, artifact("a", "1.0", "compile"), null, null);
+        ConflictData conflict = new ConflictData("2.0", null);
+        node(a, artifact("c", "1.0", "runtime"), conflict, null);
+        Exclusion exclusion = new Exclusion();
+        exclusion.setGroupId("x");
+        exclusion.setArtifactId("y");
+        Artifact bArtifact = artifact("b", "1.0", "compile");
+        bArtifact.setOptional(true);
+        DependencyNode b = node(root, bArtifact, null, List.of(exclusion));
+        DependencyNode c = new DependencyGraphSnapshot.SnapshotDependencyNode(b, artifact("c", "2.0", "compile"), "1.5", null, "[1.5,)", Boolean.FALSE, null, null);
+        ((DependencyGraphSnapshot.SnapshotDependencyNode) c).setChildren(new ArrayList<>());
+        b.getChildren().add(c);
+        node(c, artifact("d", "1.0", "provided"), null, null);
+        DependencyNode e = node(root, artifact("e", "1.0", "test"), null, null);
+        ConflictData duplicate = new ConflictData("2.0", "test");
+        duplicate.setOriginalScope("test");
+        duplicate.setOriginaOptionality(Boolean.TRUE);
+        node(e, artifact("c", "2.0", "compile"), duplicate, null);
+        return root;
+    }
+
+    private static DependencyNode node(DependencyNode parent, Artifact artifact, ConflictData data, List<Exclusion> exclusions) {
+        DependencyGraphSnapshot.SnapshotDependencyNode node = new DependencyGraphSnapshot.SnapshotDependencyNode(parent, artifact, null, null, null, null, exclusions, data);
+        node.setChildren(new ArrayList<>());
+        if (parent != null)
+            parent.getChildren().add(node);
+        return node;
+    }
+
+    private static Artifact artifact(String artifactId, String version, String scope) {
+        return new DefaultArtifact("org.example", artifactId, VersionRange.createFromVersion(version), scope, "jar", null, new DefaultArtifactHandler("jar"));
+    }
+
+    private static MavenProject project(String artifactId, String version) {
+        Model model = new Model();
+        model.setGroupId("org.example");
+        model.setArtifactId(artifactId);
+        model.setVersion(version);
+        return new MavenProject(model);
+    }
+
+    private static String serialize(DependencyNode root) {
+        StringWriter writer = new StringWriter();
+        root.accept(new SerializingDependencyNodeVisitor(writer));
+        return writer.toString();
+    }
+
+    /**
+     * @return everything the snapshot keeps about the nodes, in the tree order
+     */
+    private static List<String> describe(DependencyNode root) {
+        ConflictInfo conflictInfo = new ConflictInfo(new SystemStreamLog());
+        List<String> result = new ArrayList<>();
+        Deque<DependencyNode> stack = new ArrayDeque<>(List.of(root));
+        while (!stack.isEmpty()) {
+            DependencyNode node = stack.pop();
+            Artifact a = node.getArtifact();
+            ConflictData data = conflictInfo.getConflictData(node);
+            result.add(a + " optional=" + a.isOptional() + " " + node.getPremanagedVersion() + " " + node.getPremanagedScope() + " "
+                    + node.getVersionConstraint() + " " + node.getOptional() + " "
+                    + (node.getExclusions() == null ? null : node.getExclusions().stream().map(it -> it.getGroupId() + ":" + it.getArtifactId()).collect(Collectors.toList())) + " "
+                    + (data == null ? null : data.getWinnerVersion() + " " + data.getIgnoredScope() + " " + data.getOriginalScope() + " " + data.getOriginaOptionality()));
+            List<DependencyNode> children = new ArrayList<>(node.getChildren());
+            Collections.reverse(children);
+            children.forEach(stack::push);
+        }
+        return result;
+    }
+
+    private static List<List<String>> select(DependencyNode root, List<DependencySpec> specs) {
+        ConflictInfo conflictInfo = new ConflictInfo(new SystemStreamLog());
+        Map<DependencySpec, List<Artifact>> selected = new DependencySpecTraversal(new SystemStreamLog(), new CompactDependencyGraph(root, conflictInfo), conflictInfo).traverse(specs);
+        return specs.stream().map(spec -> selected.get(spec).stream().map(Artifact::toString).collect(Collectors.toList())).collect(Collectors.toList());
+    }
+}
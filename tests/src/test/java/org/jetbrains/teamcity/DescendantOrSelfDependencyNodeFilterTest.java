@@ -0,0 +1,55 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.apache.maven.shared.dependency.graph.internal.DefaultDependencyNode;
+import org.assertj.core.api.SoftAssertions;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DescendantOrSelfDependencyNodeFilterTest {
+
+    @Test
+    public void testIntervalsMatchParentWalk() {
+        List<DependencyNode> nodes = new ArrayList<>();
+        DependencyNode root = node(null, "root", nodes);
+        DependencyNode a = node(root, "a", nodes);
+        DependencyNode a1 = node(a, "a1", nodes);
+        node(a1, "a11", nodes);
+        node(a, "a2", nodes);
+        DependencyNode b = node(root, "b", nodes);
+        DependencyNode b1 = node(b, "b1", nodes);
+        node(b1, "b11", nodes);
+        node(root, "c", nodes);
+        CompactDependencyGraph graph = new CompactDependencyGraph(root, new ConflictInfo(new SystemStreamLog()));
+
+        SoftAssertions sa = new SoftAssertions();
+        List<List<DependencyNode>> targetSets = List.of(List.of(), List.of(root), List.of(a1), List.of(a, a1, b1), List.of(b1, a), List.of(nodes.get(nodes.size() - 1)));
+        for (List<DependencyNode> targets : targetSets) {
+            DescendantOrSelfDependencyNodeFilter legacy = new DescendantOrSelfDependencyNodeFilter(targets, it -> true);
+            DescendantOrSelfDependencyNodeFilter indexed = new DescendantOrSelfDependencyNodeFilter(graph, targets, it -> true);
+            for (DependencyNode node : nodes) {
+                sa.assertThat(indexed.accept(node)).as(node.getArtifact().getArtifactId() + " in " + targets).isEqualTo(legacy.accept(node));
+            }
+        }
+        DescendantOrSelfDependencyNodeFilter excluding = new DescendantOrSelfDependencyNodeFilter(graph, List.of(root), it -> it != b);
+        sa.assertThat(excluding.accept(b)).isFalse();
+        sa.assertThat(excluding.accept(b1)).isTrue();
+        sa.assertAll();
+    }
+
+    private static DependencyNode node(DependencyNode parent, String artifactId, List<DependencyNode> nodes) {
+        DefaultDependencyNode node = new DefaultDependencyNode(parent, new DefaultArtifact("org.example", artifactId, VersionRange.createFromVersion("1.0"),
+                "compile", "jar", null, new DefaultArtifactHandler("jar")), null, null, null);
+        node.setChildren(new ArrayList<>());
+        if (parent != null)
+            parent.getChildren().add(node);
+        nodes.add(node);
+        return node;
+    }
+}
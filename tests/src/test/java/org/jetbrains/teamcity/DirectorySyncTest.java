@@ -0,0 +1,112 @@
+package org.jetbrains.teamcity;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.jetbrains.teamcity.agent.CopyExecutor;
+import org.jetbrains.teamcity.agent.DirectorySync;
+import org.jetbrains.teamcity.agent.LargeFileCopy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DirectorySyncTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCopiesChangedAndPrunesStaleFiles() throws Exception {
+        Path source = folder.newFolder("source").toPath();
+        Path target = folder.newFolder("target").toPath();
+        write(source.resolve("a.kts"), "a");
+        write(source.resolve("nested/b.kts"), "b");
+        write(target.resolve("stale.kts"), "stale");
+        DirectorySync sync = new DirectorySync(new SystemStreamLog(), new CopyExecutor(2), true);
+
+        DirectorySync.Result first = sync.sync(DirectorySync.flattened(source, target), target, it -> false);
+        assertThat(first.getCopied()).isEqualTo(2);
+        assertThat(first.getPruned()).isEqualTo(1);
+        assertThat(first.getDestinations()).containsExactly(target.resolve("a.kts"), target.resolve("b.kts"));
+        assertThat(target.resolve("stale.kts")).doesNotExist();
+
+        assertThat(sync.sync(DirectorySync.flattened(source, target), target, it -> false).getCopied()).isEqualTo(0);
+
+        // same content with another modification time isn't copied again
+        Files.setLastModifiedTime(source.resolve("a.kts"), FileTime.fromMillis(0));
+        write(source.resolve("nested/b.kts"), "changed");
+        DirectorySync.Result third = sync.sync(DirectorySync.flattened(source, target), target, it -> false);
+        assertThat(third.getCopied()).isEqualTo(1);
+        assertThat(third.getFailures()).isEmpty();
+        assertThat(Files.getLastModifiedTime(target.resolve("a.kts"))).isEqualTo(FileTime.fromMillis(0));
+        assertThat(new String(Files.readAllBytes(target.resolve("b.kts")), StandardCharsets.UTF_8)).isEqualTo("changed");
+    }
+
+    @Test
+    public void testTreeKeepsLayoutWithoutPruning() throws Exception {
+        Path source = folder.newFolder("extras").toPath();
+        Path target = folder.newFolder("plugin").toPath();
+        write(source.resolve("dir/c.txt"), "c");
+        write(target.resolve("other.txt"), "other");
+
+        List<Pair<Path, Path>> plan = DirectorySync.tree(source, target);
+        DirectorySync.Result result = new DirectorySync(new SystemStreamLog(), new CopyExecutor(1), false).sync(plan, null, it -> true);
+        assertThat(result.getDestinations()).containsExactly(target, target.resolve("dir"), target.resolve("dir/c.txt"));
+        assertThat(target.resolve("dir/c.txt")).hasContent("c");
+        assertThat(target.resolve("other.txt")).exists();
+    }
+
+    @Test
+    public void testLargeFilesAreTransferred() throws Exception {
+        Path source = folder.newFolder("tools").toPath();
+        Path target = folder.newFolder("bundled").toPath();
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        Files.write(source.resolve("tool.zip"), content);
+        boolean posix = Files.getFileAttributeView(source, PosixFileAttributeView.class) != null;
+        if (posix)
+            Files.setPosixFilePermissions(source.resolve("tool.zip"), PosixFilePermissions.fromString("rwxr-x---"));
+        write(source.resolve("small.txt"), "small");
+        DirectorySync sync = new DirectorySync(new SystemStreamLog(), new CopyExecutor(2), false);
+        sync.setLargeFileCopy(new LargeFileCopy(new SystemStreamLog(), 1024));
+
+        assertThat(sync.sync(DirectorySync.flattened(source, target), target, it -> false).getCopied()).isEqualTo(2);
+        assertThat(Files.readAllBytes(target.resolve("tool.zip"))).isEqualTo(content);
+        assertThat(Files.getLastModifiedTime(target.resolve("tool.zip")).toMillis()).isEqualTo(Files.getLastModifiedTime(source.resolve("tool.zip")).toMillis());
+        if (posix)
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(target.resolve("tool.zip")))).isEqualTo("rwxr-x---");
+        assertThat(sync.sync(DirectorySync.flattened(source, target), target, it -> false).getCopied()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLastSourceWinsForSameDestination() throws Exception {
+        Path source = folder.newFolder("scripts").toPath();
+        Path target = folder.newFolder("kotlin-dsl").toPath();
+        write(source.resolve("first/a.kts"), "first");
+        write(source.resolve("b.kts"), "b");
+        write(source.resolve("second/a.kts"), "second");
+        List<Pair<Path, Path>> plan = List.of(
+                Pair.of(source.resolve("first/a.kts"), target.resolve("a.kts")),
+                Pair.of(source.resolve("b.kts"), target.resolve("b.kts")),
+                Pair.of(source.resolve("second/a.kts"), target.resolve("a.kts")));
+
+        DirectorySync.Result result = new DirectorySync(new SystemStreamLog(), new CopyExecutor(2), true).sync(plan, target, it -> false);
+        assertThat(result.getCopied()).isEqualTo(2);
+        assertThat(result.getDestinations()).containsExactly(target.resolve("b.kts"), target.resolve("a.kts"));
+        assertThat(target.resolve("a.kts")).hasContent("second");
+    }
+
+    private static void write(Path path, String content) throws Exception {
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,68 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.jetbrains.teamcity.agent.LargeFileCopy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LargeFileCopyTest {
+    private static final int SIZE = 128 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 120_000)
+    public void testSourceTruncatedWhileCopyingFails() throws Exception {
+        Path source = folder.getRoot().toPath().resolve("tool.zip");
+        Path destination = folder.getRoot().toPath().resolve("copy.zip");
+        LargeFileCopy copy = new LargeFileCopy(new SystemStreamLog(), 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Throwable failure = null;
+            // the source is truncated from another thread, so it may miss the copy
+            for (int attempt = 0; attempt < 20 && failure == null; attempt++) {
+                write(source);
+                Future<?> copying = executor.submit(() -> {
+                    copy.copy(source, destination);
+                    return null;
+                });
+                Thread.sleep(attempt % 5);
+                try (FileChannel channel = FileChannel.open(source, StandardOpenOption.WRITE)) {
+                    channel.truncate(SIZE / 4);
+                }
+                try {
+                    copying.get(60, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                }
+            }
+
+            assertThat(failure).isInstanceOf(EOFException.class).hasMessageContaining("was truncated to " + SIZE / 4 + " bytes");
+            assertThat(destination).doesNotExist();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void write(Path file) throws Exception {
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < SIZE / block.length; i++) {
+                out.write(block);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.jetbrains.teamcity.agent.LocalRepositoryIndex;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LocalRepositoryIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path repository;
+    private Path indexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = folder.newFolder("repository").toPath();
+        indexFile = folder.getRoot().toPath().resolve("work/local-repository.idx");
+    }
+
+    @Test
+    public void testStaleEntriesAreNotFound() throws Exception {
+        LocalRepositoryIndex index = LocalRepositoryIndex.load(new SystemStreamLog(), indexFile, repository);
+        Artifact artifact = new DefaultArtifact("org.example:foo:1.0");
+        Path file = write("org/example/foo/1.0/foo-1.0.jar", "content");
+        assertThat(index.find(artifact)).isNull();
+
+        index.record(artifact, artifact.setFile(file.toFile()));
+        assertThat(index.find(artifact)).isEqualTo(file.toFile());
+
+        // touched but not changed
+        touch(file, -60_000);
+        assertThat(index.find(artifact)).isEqualTo(file.toFile());
+
+        // changed with the same size, so the SHA-1 is compared
+        Files.write(file, "CONTENT".getBytes(StandardCharsets.UTF_8));
+        touch(file, -120_000);
+        assertThat(index.find(artifact)).isNull();
+        // removed from the index even if the file is restored
+        Files.write(file, "content".getBytes(StandardCharsets.UTF_8));
+        assertThat(index.find(artifact)).isNull();
+
+        index.record(artifact, artifact.setFile(file.toFile()));
+        Files.write(file, "longer content".getBytes(StandardCharsets.UTF_8));
+        assertThat(index.find(artifact)).isNull();
+
+        index.record(artifact, artifact.setFile(file.toFile()));
+        Files.delete(file);
+        assertThat(index.find(artifact)).isNull();
+    }
+
+    @Test
+    public void testEntriesSurviveSaveAndLoad() throws Exception {
+        LocalRepositoryIndex index = LocalRepositoryIndex.load(new SystemStreamLog(), indexFile, repository);
+        Artifact foo = new DefaultArtifact("org.example:foo:1.0");
+        Path fooFile = write("org/example/foo/1.0/foo-1.0.jar", "foo");
+        Artifact bar = new DefaultArtifact("org.example:bar:2.0");
+        Path barFile = write("org/example/bar/2.0/bar-2.0.jar", "bar");
+        Artifact snapshot = new DefaultArtifact("org.example:baz:1.0-SNAPSHOT");
+        Path snapshotFile = write("org/example/baz/1.0-SNAPSHOT/baz-1.0-SNAPSHOT.jar", "baz");
+        Artifact outside = new DefaultArtifact("org.example:qux:1.0");
+        Path outsideFile = Files.write(folder.newFile("qux-1.0.jar").toPath(), "qux".getBytes(StandardCharsets.UTF_8));
+        index.record(foo, foo.setFile(fooFile.toFile()));
+        index.record(bar, bar.setFile(barFile.toFile()));
+        index.record(snapshot, snapshot.setFile(snapshotFile.toFile()));
+        index.record(outside, outside.setFile(outsideFile.toFile()));
+        index.save();
+
+        LocalRepositoryIndex loaded = LocalRepositoryIndex.load(new SystemStreamLog(), indexFile, repository);
+        assertThat(loaded.find(foo)).isEqualTo(fooFile.toFile().getAbsoluteFile());
+        assertThat(loaded.find(bar)).isEqualTo(barFile.toFile().getAbsoluteFile());
+        assertThat(loaded.find(snapshot)).isNull();
+        assertThat(loaded.find(outside)).isNull();
+
+        // refreshed modification time is saved too
+        touch(fooFile, -60_000);
+        assertThat(loaded.find(foo)).isNotNull();
+        loaded.save();
+        String saved = new String(Files.readAllBytes(indexFile), StandardCharsets.UTF_8);
+        assertThat(saved).contains("\t" + Files.getLastModifiedTime(fooFile).toMillis() + "\t");
+
+        Files.write(indexFile, "# some other format\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(LocalRepositoryIndex.load(new SystemStreamLog(), indexFile, repository).find(foo)).isNull();
+    }
+
+    @Test
+    public void testClassifierAndExtensionArePartOfKey() throws Exception {
+        LocalRepositoryIndex index = LocalRepositoryIndex.load(new SystemStreamLog(), indexFile, repository);
+        Artifact jar = new DefaultArtifact("org.example:foo:jar:1.0");
+        Path jarFile = write("org/example/foo/1.0/foo-1.0.jar", "classes");
+        Artifact sources = new DefaultArtifact("org.example:foo:jar:sources:1.0");
+        Path sourcesFile = write("org/example/foo/1.0/foo-1.0-sources.jar", "sources");
+        Artifact pom = new DefaultArtifact("org.example:foo:pom:1.0");
+        Path pomFile = write("org/example/foo/1.0/foo-1.0.pom", "<project/>");
+        index.record(jar, jar.setFile(jarFile.toFile()));
+        index.record(sources, sources.setFile(sourcesFile.toFile()));
+        index.record(pom, pom.setFile(pomFile.toFile()));
+        index.save();
+
+        LocalRepositoryIndex loaded = LocalRepositoryIndex.load(new SystemStreamLog(), indexFile, repository);
+        for (LocalRepositoryIndex it : new LocalRepositoryIndex[]{index, loaded}) {
+            assertThat(it.find(jar)).isEqualTo(jarFile.toFile().getAbsoluteFile());
+            assertThat(it.find(sources)).isEqualTo(sourcesFile.toFile().getAbsoluteFile());
+            assertThat(it.find(pom)).isEqualTo(pomFile.toFile().getAbsoluteFile());
+            assertThat(it.find(new DefaultArtifact("org.example:foo:jar:tests:1.0"))).isNull();
+        }
+    }
+
+    private Path write(String path, String content) throws Exception {
+        Path file = repository.resolve(path);
+        Files.createDirectories(file.getParent());
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void touch(Path file, long shift) throws Exception {
+        File f = file.toFile();
+        Files.setLastModifiedTime(file, FileTime.fromMillis(f.lastModified() + shift));
+    }
+}
@@ -0,0 +1,140 @@
+package org.jetbrains.teamcity;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.jetbrains.teamcity.agent.PluginArchiveWriter;
+import org.jetbrains.teamcity.agent.StagingPlan;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PluginArchiveWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStoresCompressedFilesAndDeflatesTheRest() throws Exception {
+        Path root = createPlugin();
+        Path zip = folder.getRoot().toPath().resolve("plugin.zip");
+        new PluginArchiveWriter(new SystemStreamLog()).write(PluginArchiveWriter.entriesOf(root), zip);
+
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            List<String> names = new ArrayList<>();
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                names.add(entry.getName());
+            }
+            assertThat(names).containsExactly("agent/", "agent/plugin.zip", "server/", "server/lib.jar", "teamcity-plugin.xml");
+            assertThat(zipFile.getEntry("agent/").getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(zipFile.getEntry("server/lib.jar").getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(zipFile.getEntry("teamcity-plugin.xml").getMethod()).isEqualTo(ZipEntry.DEFLATED);
+            assertThat(IOUtils.toString(zipFile.getInputStream(zipFile.getEntry("server/lib.jar")), StandardCharsets.UTF_8)).isEqualTo("jar content");
+        }
+    }
+
+    @Test
+    public void testParallelWriterWritesSameBytes() throws Exception {
+        Path root = createPlugin();
+        Random random = new Random(7);
+        for (int i = 0; i < 40; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 200 * i; j++) {
+                sb.append("line ").append(random.nextInt(1000)).append('\n');
+            }
+            write(root.resolve("server/classes/c" + i + ".txt"), sb.toString());
+        }
+        // larger than the in-memory scatter buffer
+        byte[] big = new byte[3 * 1024 * 1024];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) (random.nextInt(16) + 'a');
+        }
+        Files.write(root.resolve("server/big.txt"), big);
+        Files.write(root.resolve("agent/tool.zip"), big);
+        List<PluginArchiveWriter.Entry> entries = PluginArchiveWriter.entriesOf(root);
+
+        Path serial = folder.getRoot().toPath().resolve("serial.zip");
+        new PluginArchiveWriter(new SystemStreamLog()).write(entries, serial);
+        PluginArchiveWriter parallelWriter = new PluginArchiveWriter(new SystemStreamLog());
+        parallelWriter.setParallelism(4);
+        Path parallel = folder.getRoot().toPath().resolve("parallel.zip");
+        parallelWriter.write(entries, parallel);
+
+        assertThat(Files.readAllBytes(parallel)).isEqualTo(Files.readAllBytes(serial));
+        try (ZipFile zipFile = new ZipFile(parallel.toFile())) {
+            assertThat(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("server/big.txt")))).isEqualTo(big);
+        }
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertThat(files.map(it -> it.getFileName().toString())).noneMatch(it -> it.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    public void testPlannedFilesAreTakenFromSources() throws Exception {
+        Path root = createPlugin();
+        Path repository = folder.newFolder("repository").toPath();
+        write(repository.resolve("dep.jar"), "dependency");
+        write(repository.resolve("stale.txt"), "planned");
+        write(root.resolve("server/stale.txt"), "on disk");
+        StagingPlan plan = new StagingPlan();
+        plan.add(repository.resolve("dep.jar"), root.resolve("server/lib/dep.jar"));
+        plan.add(repository.resolve("stale.txt"), root.resolve("server/stale.txt"));
+
+        Path zip = folder.getRoot().toPath().resolve("direct.zip");
+        new PluginArchiveWriter(new SystemStreamLog()).write(PluginArchiveWriter.entriesOf(root, plan), zip);
+
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            List<String> names = new ArrayList<>();
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                names.add(entry.getName());
+            }
+            assertThat(names).containsExactly("agent/", "agent/plugin.zip", "server/", "server/lib/", "server/lib.jar", "server/lib/dep.jar", "server/stale.txt", "teamcity-plugin.xml");
+            assertThat(IOUtils.toString(zipFile.getInputStream(zipFile.getEntry("server/lib/dep.jar")), StandardCharsets.UTF_8)).isEqualTo("dependency");
+            assertThat(IOUtils.toString(zipFile.getInputStream(zipFile.getEntry("server/stale.txt")), StandardCharsets.UTF_8)).isEqualTo("planned");
+        }
+        assertThat(root.resolve("server/lib")).doesNotExist();
+    }
+
+    @Test
+    public void testPackedZipIsCopiedFromPluginZip() throws Exception {
+        Path root = createPlugin();
+        Path parent = folder.newFolder("packed-source").toPath();
+        Files.move(root, parent.resolve("my-plugin"));
+        root = parent.resolve("my-plugin");
+        PluginArchiveWriter writer = new PluginArchiveWriter(new SystemStreamLog());
+        writer.setParallelism(2);
+
+        Path zip = folder.getRoot().toPath().resolve("my-plugin.zip");
+        Path packed = folder.getRoot().toPath().resolve("my-plugin-packed.zip");
+        writer.write(PluginArchiveWriter.entriesOf(root), zip, packed, new PluginArchiveWriter.Entry("my-plugin/", root));
+        Path expected = folder.getRoot().toPath().resolve("expected-packed.zip");
+        writer.write(PluginArchiveWriter.entriesOf(parent), expected);
+
+        assertThat(Files.readAllBytes(packed)).isEqualTo(Files.readAllBytes(expected));
+    }
+
+    private Path createPlugin() throws Exception {
+        Path root = folder.newFolder("plugin").toPath();
+        write(root.resolve("teamcity-plugin.xml"), "<teamcity-plugin/>");
+        write(root.resolve("server/lib.jar"), "jar content");
+        write(root.resolve("agent/plugin.zip"), "zip content");
+        return root;
+    }
+
+    private static void write(Path path, String content) throws Exception {
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,140 @@
+package org.jetbrains.teamcity;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.jetbrains.teamcity.agent.CopyExecutor;
+import org.jetbrains.teamcity.agent.ResolveCopyPipeline;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class ResolveCopyPipelineTest {
+    private static final ResolveCopyPipeline.Resolver RESOLVER = artifacts -> artifacts.stream()
+            .map(it -> (org.eclipse.aether.artifact.Artifact) new org.eclipse.aether.artifact.DefaultArtifact(it.getGroupId(), it.getArtifactId(), it.getType(), it.getVersion()))
+            .collect(Collectors.toList());
+
+    @Test(timeout = 60_000)
+    public void testResultsKeepInputOrder() throws Exception {
+        List<Artifact> artifacts = artifacts(40);
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch othersDone = new CountDownLatch(artifacts.size() - 1);
+        List<String> results = new ResolveCopyPipeline<String>(new CopyExecutor(4)).run(artifacts, RESOLVER, (i, source) -> {
+            if (i == 0)
+                othersDone.await();
+            else
+                Thread.sleep((artifacts.size() - i) % 5);
+            completed.add(i);
+            othersDone.countDown();
+            return source.getArtifactId();
+        });
+
+        assertThat(completed.get(completed.size() - 1)).isEqualTo(0);
+        assertThat(results).isEqualTo(artifacts.stream().map(Artifact::getArtifactId).collect(Collectors.toList()));
+    }
+
+    @Test(timeout = 60_000)
+    public void testLastArtifactWinsForSameDestination() throws Exception {
+        CopyExecutor executor = new CopyExecutor(4);
+        List<Artifact> artifacts = artifacts(50);
+        Random random = new Random(42);
+        for (int run = 0; run < 20; run++) {
+            Map<Path, Integer> written = new ConcurrentHashMap<>();
+            Set<Path> copying = ConcurrentHashMap.newKeySet();
+            List<String> problems = Collections.synchronizedList(new ArrayList<>());
+            int[] delays = random.ints(artifacts.size(), 0, 3).toArray();
+            new ResolveCopyPipeline<Integer>(executor).run(artifacts, RESOLVER, (i, source) -> i, i -> Paths.get("lib-" + i % 3 + ".jar"), (i, result) -> {
+                Path destination = Paths.get("lib-" + i % 3 + ".jar");
+                if (!copying.add(destination))
+                    problems.add(i + " copied to " + destination + " concurrently");
+                Thread.sleep(delays[i]);
+                Integer previous = written.put(destination, i);
+                if (previous != null && previous > i)
+                    problems.add(i + " overwrote " + previous);
+                copying.remove(destination);
+            });
+
+            assertThat(problems).isEmpty();
+            assertThat(written).containsOnly(
+                    Map.entry(Paths.get("lib-0.jar"), 48),
+                    Map.entry(Paths.get("lib-1.jar"), 49),
+                    Map.entry(Paths.get("lib-2.jar"), 47));
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void testResolverFailureFailsBuildAndReleasesWorkers() throws Exception {
+        CopyExecutor executor = new CopyExecutor(2);
+        List<Artifact> artifacts = artifacts(100);
+        for (Exception failure : List.of(new MojoExecutionException("resolution failed"), new IllegalStateException("resolver is broken"))) {
+            Set<Integer> processed = ConcurrentHashMap.newKeySet();
+            // the queue is full of slowly processed artifacts when the resolver fails in the middle of the list
+            Throwable thrown = catchThrowable(() -> new ResolveCopyPipeline<String>(executor).run(artifacts, chunk -> {
+                if (chunk.contains(artifacts.get(60)) && failure instanceof MojoExecutionException)
+                    throw (MojoExecutionException) failure;
+                if (chunk.contains(artifacts.get(60)))
+                    throw (RuntimeException) failure;
+                return RESOLVER.resolve(chunk);
+            }, (i, source) -> {
+                Thread.sleep(2);
+                processed.add(i);
+                return source.getArtifactId();
+            }));
+
+            assertThat(thrown).isSameAs(failure);
+            assertThat(processed).isEqualTo(IntStream.range(0, 56).boxed().collect(Collectors.toSet()));
+            // both workers are back in the pool
+            CountDownLatch started = new CountDownLatch(2);
+            Future<?> first = executor.submit(() -> awaitOthers(started));
+            Future<?> second = executor.submit(() -> awaitOthers(started));
+            first.get(10, TimeUnit.SECONDS);
+            second.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void testStageErrorsFailBuild() throws Exception {
+        CopyExecutor executor = new CopyExecutor(4);
+        List<Artifact> artifacts = artifacts(20);
+        MojoExecutionException failure = new MojoExecutionException("cannot stage");
+        Throwable thrown = catchThrowable(() -> new ResolveCopyPipeline<String>(executor).run(artifacts, RESOLVER, (i, source) -> {
+            if (i == 5)
+                throw failure;
+            return source.getArtifactId();
+        }));
+        assertThat(thrown).isSameAs(failure);
+
+        IOException error = new IOException("disk is full");
+        thrown = catchThrowable(() -> new ResolveCopyPipeline<String>(executor).run(artifacts, RESOLVER, (i, source) -> {
+            if (i == 5)
+                throw error;
+            return source.getArtifactId();
+        }));
+        assertThat(thrown).isInstanceOf(MojoExecutionException.class).hasMessage("Error while copying dependencies").hasCause(error);
+    }
+
+    private static Object awaitOthers(CountDownLatch started) throws InterruptedException {
+        started.countDown();
+        started.await();
+        return null;
+    }
+
+    private static List<Artifact> artifacts(int count) {
+        List<Artifact> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            result.add(new DefaultArtifact("org.example", "a" + i, VersionRange.createFromVersion("1.0"), "compile", "jar", null, new DefaultArtifactHandler("jar")));
+        }
+        return result;
+    }
+}
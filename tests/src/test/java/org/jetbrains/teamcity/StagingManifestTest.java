@@ -0,0 +1,263 @@
+package org.jetbrains.teamcity;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.jetbrains.teamcity.agent.LargeFileCopy;
+import org.jetbrains.teamcity.agent.PluginArchiveWriter;
+import org.jetbrains.teamcity.agent.StagingManifest;
+import org.jetbrains.teamcity.agent.StagingMode;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class StagingManifestTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path source;
+    private Path work;
+    private Path manifestFile;
+
+    @Before
+    public void setUp() throws Exception {
+        source = folder.newFolder("source").toPath();
+        work = folder.newFolder("work").toPath();
+        manifestFile = work.resolve("staging.manifest");
+    }
+
+    @Test
+    public void testSameSizeChangedJarIsStagedAgain() throws Exception {
+        StagingManifest manifest = load();
+        File jar = write(source.resolve("lib.jar"), "version 1");
+        Path destination = work.resolve("lib.jar");
+        assertThat(manifest.stage(jar, destination, StagingMode.COPY)).isTrue();
+        assertThat(manifest.stage(jar, destination, StagingMode.COPY)).isFalse();
+
+        write(jar.toPath(), "version 2");
+        touch(jar.toPath(), 60_000);
+        assertThat(manifest.stage(jar, destination, StagingMode.COPY)).isTrue();
+        assertThat(destination).hasContent("version 2");
+    }
+
+    @Test
+    public void testRebuiltJarWithSameContentIsNotStagedAgain() throws Exception {
+        StagingManifest manifest = load();
+        File jar = write(source.resolve("module.jar"), "classes");
+        Path destination = work.resolve("module.jar");
+        assertThat(manifest.stage(jar, destination, StagingMode.COPY)).isTrue();
+        FileTime staged = Files.getLastModifiedTime(destination);
+
+        write(jar.toPath(), "classes");
+        touch(jar.toPath(), 60_000);
+        assertThat(manifest.stage(jar, destination, StagingMode.COPY)).isFalse();
+        assertThat(Files.getLastModifiedTime(destination)).isEqualTo(staged);
+        // the new modification time is remembered, the content isn't read again
+        assertThat(manifest.isUpToDate(jar, destination)).isTrue();
+    }
+
+    @Test
+    public void testDestinationChangedByHandIsStagedAgain() throws Exception {
+        StagingManifest manifest = load();
+        File jar = write(source.resolve("lib.jar"), "original");
+        Path destination = work.resolve("lib.jar");
+        assertThat(manifest.stage(jar, destination, StagingMode.COPY)).isTrue();
+
+        write(destination, "patched!");
+        touch(destination, 60_000);
+        assertThat(manifest.stage(jar, destination, StagingMode.COPY)).isTrue();
+        assertThat(destination).hasContent("original");
+    }
+
+    @Test
+    public void testManifestSurvivesSaveAndLoad() throws Exception {
+        File first = write(source.resolve("first.jar"), "first");
+        File second = write(source.resolve("second.jar"), "second");
+        Path lib = Files.createDirectories(work.resolve("lib"));
+        StagingManifest build1 = load();
+        assertThat(build1.stage(first, lib.resolve("first.jar"), StagingMode.COPY)).isTrue();
+        assertThat(build1.stage(second, lib.resolve("second.jar"), StagingMode.COPY)).isTrue();
+        build1.save();
+
+        // the second build sees rebuilt jars, the content decides
+        touch(first.toPath(), 60_000);
+        write(second.toPath(), "SECOND");
+        touch(second.toPath(), 60_000);
+        StagingManifest build2 = load();
+        assertThat(build2.stage(first, lib.resolve("first.jar"), StagingMode.COPY)).isFalse();
+        assertThat(build2.stage(second, lib.resolve("second.jar"), StagingMode.COPY)).isTrue();
+        build2.save();
+
+        StagingManifest build3 = load();
+        assertThat(build3.stage(first, lib.resolve("first.jar"), StagingMode.COPY)).isFalse();
+        assertThat(build3.stage(second, lib.resolve("second.jar"), StagingMode.COPY)).isFalse();
+        assertThat(lib.resolve("second.jar")).hasContent("SECOND");
+    }
+
+    @Test
+    public void testLargeFileIsStagedAgainWhenSourceIsTouched() throws Exception {
+        Path tool = source.resolve("tool.zip");
+        byte[] content = new byte[4096];
+        new Random(42).nextBytes(content);
+        Files.write(tool, content);
+        Path destination = work.resolve("tool.zip");
+        StagingManifest build1 = load();
+        build1.setLargeFileCopy(new LargeFileCopy(new SystemStreamLog(), 1024));
+        assertThat(build1.stage(tool.toFile(), destination, StagingMode.COPY)).isTrue();
+        assertThat(build1.stage(tool.toFile(), destination, StagingMode.COPY)).isFalse();
+        build1.save();
+
+        StagingManifest build2 = load();
+        build2.setLargeFileCopy(new LargeFileCopy(new SystemStreamLog(), 1024));
+        assertThat(build2.stage(tool.toFile(), destination, StagingMode.COPY)).isFalse();
+        // the SHA-1 of a large file isn't known, so the same content is copied again
+        touch(tool, 60_000);
+        assertThat(build2.stage(tool.toFile(), destination, StagingMode.COPY)).isTrue();
+        assertThat(Files.readAllBytes(destination)).isEqualTo(content);
+    }
+
+    @Test
+    public void testCopyOverHardLinkKeepsSource() throws Exception {
+        File jar = write(source.resolve("lib.jar"), "linked");
+        File other = write(source.resolve("other/lib.jar"), "other content");
+        Path tool = source.resolve("tool.zip");
+        byte[] toolContent = new byte[4096];
+        new Random(42).nextBytes(toolContent);
+        Files.write(tool, toolContent);
+        Path destination = work.resolve("lib.jar");
+        Path toolDestination = work.resolve("tool.zip");
+        StagingManifest build1 = load();
+        assertThat(build1.stage(jar, destination, StagingMode.HARDLINK)).isTrue();
+        assertThat(build1.stage(tool.toFile(), toolDestination, StagingMode.HARDLINK)).isTrue();
+        assertThat(Files.isSameFile(jar.toPath(), destination)).isTrue();
+        build1.save();
+
+        // another jar with the same name and a rebuilt tool are copied over the links
+        StagingManifest build2 = load();
+        build2.setLargeFileCopy(new LargeFileCopy(new SystemStreamLog(), 1024));
+        Files.delete(tool);
+        byte[] rebuilt = toolContent.clone();
+        rebuilt[0]++;
+        Files.write(tool, rebuilt);
+        assertThat(build2.stage(other, destination, StagingMode.COPY)).isTrue();
+        assertThat(build2.stage(tool.toFile(), toolDestination, StagingMode.COPY)).isTrue();
+        assertThat(jar.toPath()).hasContent("linked");
+        assertThat(destination).hasContent("other content");
+        assertThat(Files.isSameFile(jar.toPath(), destination)).isFalse();
+        assertThat(Files.readAllBytes(tool)).isEqualTo(rebuilt);
+        assertThat(Files.readAllBytes(toolDestination)).isEqualTo(rebuilt);
+
+        // the linked file itself changed in place
+        assertThat(build2.stage(jar, destination, StagingMode.HARDLINK)).isTrue();
+        write(jar.toPath(), "changed");
+        touch(jar.toPath(), 60_000);
+        assertThat(build2.stage(jar, destination, StagingMode.COPY)).isTrue();
+        assertThat(jar.toPath()).hasContent("changed");
+        assertThat(destination).hasContent("changed");
+        assertThat(Files.isSameFile(jar.toPath(), destination)).isFalse();
+    }
+
+    @Test
+    public void testSymbolicLinkIsZippedAsContent() throws Exception {
+        File jar = write(source.resolve("lib.jar"), "jar content");
+        Path plugin = Files.createDirectories(work.resolve("plugin/server"));
+        assertThat(load().stage(jar, plugin.resolve("lib.jar"), StagingMode.SYMLINK)).isTrue();
+        assertThat(Files.isSymbolicLink(plugin.resolve("lib.jar"))).isTrue();
+
+        Path zip = work.resolve("plugin.zip");
+        new PluginArchiveWriter(new SystemStreamLog()).write(PluginArchiveWriter.entriesOf(plugin.getParent()), zip);
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            ZipArchiveEntry entry = zipFile.getEntry("server/lib.jar");
+            assertThat(entry.isUnixSymlink()).isFalse();
+            assertThat(entry.getSize()).isEqualTo(jar.length());
+            assertThat(IOUtils.toString(zipFile.getInputStream(entry), StandardCharsets.UTF_8)).isEqualTo("jar content");
+        }
+    }
+
+    @Test
+    public void testStaleLinkIsReplacedWhenModeChanges() throws Exception {
+        StagingManifest manifest = load();
+        File jar = write(source.resolve("lib.jar"), "content");
+        Path destination = work.resolve("lib.jar");
+
+        assertThat(manifest.stage(jar, destination, StagingMode.HARDLINK)).isTrue();
+        assertThat(manifest.stage(jar, destination, StagingMode.HARDLINK)).isFalse();
+
+        assertThat(manifest.stage(jar, destination, StagingMode.SYMLINK)).isTrue();
+        assertThat(Files.readSymbolicLink(destination)).isEqualTo(jar.toPath().toAbsolutePath());
+        assertThat(manifest.stage(jar, destination, StagingMode.SYMLINK)).isFalse();
+
+        assertThat(manifest.stage(jar, destination, StagingMode.COPY)).isTrue();
+        assertThat(Files.isSymbolicLink(destination)).isFalse();
+        assertThat(Files.isSameFile(jar.toPath(), destination)).isFalse();
+        assertThat(destination).hasContent("content");
+        assertThat(manifest.stage(jar, destination, StagingMode.COPY)).isFalse();
+
+        assertThat(manifest.stage(jar, destination, StagingMode.SYMLINK)).isTrue();
+        assertThat(manifest.stage(jar, destination, StagingMode.HARDLINK)).isTrue();
+        assertThat(Files.isSymbolicLink(destination)).isFalse();
+        assertThat(Files.isSameFile(jar.toPath(), destination)).isTrue();
+    }
+
+    @Test
+    public void testHardLinkFallsBackToCopy() throws Exception {
+        // hard links can't cross filesystems
+        Path otherFileSystem = Paths.get("/dev/shm");
+        Assume.assumeTrue(Files.isDirectory(otherFileSystem) && Files.isWritable(otherFileSystem)
+                && !Files.getFileStore(otherFileSystem).equals(Files.getFileStore(work)));
+        Path directory = Files.createTempDirectory(otherFileSystem, "staging");
+        try {
+            File jar = write(directory.resolve("lib.jar"), "content");
+            Path destination = work.resolve("lib.jar");
+            StagingManifest manifest = load();
+            assertThat(manifest.stage(jar, destination, StagingMode.HARDLINK)).isTrue();
+            assertThat(destination).hasContent("content");
+            assertThat(Files.isSymbolicLink(destination)).isFalse();
+            assertThat(manifest.stage(jar, destination, StagingMode.HARDLINK)).isFalse();
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testUnknownStagingModeIsRejected() {
+        Agent agent = new Agent();
+        agent.setStagingMode("softlink");
+        assertThat(catchThrowable(agent::toStagingMode)).isInstanceOf(MojoExecutionException.class)
+                .hasMessage("Unknown staging mode 'softlink', expected one of copy, hardlink, reflink, symlink");
+        Server server = new Server();
+        server.setStagingMode("softlink");
+        assertThat(catchThrowable(server::toStagingMode)).isInstanceOf(MojoExecutionException.class);
+        server.setStagingMode(" Hardlink ");
+        assertThat(catchThrowable(server::toStagingMode)).isNull();
+    }
+
+    private StagingManifest load() {
+        return StagingManifest.load(new SystemStreamLog(), manifestFile, work);
+    }
+
+    private static File write(Path file, String content) throws Exception {
+        Files.createDirectories(file.getParent());
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8)).toFile();
+    }
+
+    private static void touch(Path file, long shift) throws Exception {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + shift));
+    }
+}